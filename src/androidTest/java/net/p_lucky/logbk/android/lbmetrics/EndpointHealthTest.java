@@ -0,0 +1,120 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class EndpointHealthTest extends AndroidTestCase {
+
+    public void testOrder() {
+        final String[] urls = { "http://a", "http://b", "http://c" };
+        final RoundTripTimer roundTrips = new RoundTripTimer(100, 5000);
+        final EndpointHealth health = new EndpointHealth(60 * 1000, roundTrips);
+
+        // Untried endpoints keep their order, and go ahead of ones that have answered
+        assertEquals(Arrays.asList(urls), Arrays.asList(health.order(urls, 0)));
+        answer(health, roundTrips, "http://a", 300);
+        assertEquals(Arrays.asList("http://b", "http://c", "http://a"), Arrays.asList(health.order(urls, 0)));
+
+        // Then the fastest goes first
+        answer(health, roundTrips, "http://b", 100);
+        answer(health, roundTrips, "http://c", 200);
+        assertEquals(Arrays.asList("http://b", "http://c", "http://a"), Arrays.asList(health.order(urls, 0)));
+
+        // A failure takes an endpoint out until its cool down is over, and counts against it after
+        health.recordFailure("http://b", 1000);
+        assertTrue(health.isCoolingDown("http://b", 1000));
+        assertEquals(Arrays.asList("http://c", "http://a"), Arrays.asList(health.order(urls, 1000)));
+        assertEquals(Arrays.asList("http://b", "http://c", "http://a"), Arrays.asList(health.order(urls, 61 * 1000)));
+        health.recordFailure("http://b", 61 * 1000);
+        health.recordFailure("http://b", 61 * 1000);
+        assertEquals(Arrays.asList("http://c", "http://a", "http://b"), Arrays.asList(health.order(urls, 200 * 1000)));
+        assertTrue(health.getErrorRate("http://b") > 0.5);
+
+        // Successes bring it back
+        for (int i = 0; i < 10; i++) {
+            answer(health, roundTrips, "http://b", 100);
+        }
+        assertEquals("http://b", health.order(urls, 200 * 1000)[0]);
+        assertEquals(100.0, health.getLatency("http://b"), 1.0);
+
+        // If everything is cooling down, everything is tried, in the order given
+        health.recordFailure("http://a", 300 * 1000);
+        health.recordFailure("http://b", 300 * 1000);
+        health.recordFailure("http://c", 300 * 1000);
+        assertEquals(Arrays.asList(urls), Arrays.asList(health.order(urls, 300 * 1000)));
+    }
+
+    public void testFailover() throws IOException {
+        final TestHttpServer broken = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                return 503;
+            }
+        });
+        final TestHttpServer slow = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                try {
+                    Thread.sleep(300);
+                } catch (final InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+        final TestHttpServer fast = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final String[] urls = { broken.getUrl(), slow.getUrl(), fast.getUrl() };
+            final ServerMessage poster = new ServerMessage();
+            final EndpointHealth health = new EndpointHealth(60 * 1000, poster.getRoundTrips());
+            final BatchUpload upload = new BatchUpload(poster, health);
+            upload.getBatch().getPayloadBuilder().append("[{\"event\":\"failover\"}]");
+            upload.getBatch().addRow(1, 0);
+            upload.prepare(urls, false, false, false, "test");
+
+            // The first endpoint fails, so the next one is tried
+            assertEquals(BatchUpload.RESULT_SENT, upload.call().getResult());
+            assertEquals(1, broken.getRequests().size());
+            assertEquals(1, slow.getRequests().size());
+            assertEquals(0, fast.getRequests().size());
+            assertTrue(health.isCoolingDown(broken.getUrl(), SystemClock.elapsedRealtime()));
+
+            // The broken one is left alone while it cools down, and the untried one gets measured
+            assertEquals(BatchUpload.RESULT_SENT, upload.call().getResult());
+            assertEquals(1, broken.getRequests().size());
+            assertEquals(1, slow.getRequests().size());
+            assertEquals(1, fast.getRequests().size());
+
+            // After that, traffic goes to the fastest
+            for (int i = 0; i < 3; i++) {
+                assertEquals(BatchUpload.RESULT_SENT, upload.call().getResult());
+            }
+            assertEquals(1, broken.getRequests().size());
+            assertEquals(1, slow.getRequests().size());
+            assertEquals(4, fast.getRequests().size());
+            assertTrue(health.getLatency(slow.getUrl()) > health.getLatency(fast.getUrl()));
+        } finally {
+            broken.shutdown();
+            slow.shutdown();
+            fast.shutdown();
+        }
+    }
+
+    // As the transport and BatchUpload record a request to url that took rtt milliseconds
+    private static void answer(EndpointHealth health, RoundTripTimer roundTrips, String url, long rtt) {
+        roundTrips.recordRoundTrip(url, rtt);
+        health.recordSuccess(url);
+    }
+}
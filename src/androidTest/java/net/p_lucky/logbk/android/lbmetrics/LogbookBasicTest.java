@@ -1,34 +1,49 @@
 package net.p_lucky.logbk.android.lbmetrics;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.test.AndroidTestCase;
 import android.test.mock.MockContext;
 import android.test.mock.MockPackageManager;
 
 import net.p_lucky.logbk.android.util.Base64Coder;
+import net.p_lucky.logbk.android.util.FormEncoder;
 
 import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LogbookBasicTest extends AndroidTestCase {
 
@@ -39,6 +54,7 @@ public class LogbookBasicTest extends AndroidTestCase {
         SharedPreferences.Editor editor = referrerPreferences.edit();
         editor.clear();
         editor.commit();
+        getContext().getSharedPreferences(RetryPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit();
 
         mMockPreferences = new Future<SharedPreferences>() {
             @Override
@@ -116,6 +132,231 @@ public class LogbookBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testAddJSONBatch() {
+        LBDbAdapter adapter = new LBDbAdapter(getContext(), "BatchTestDB");
+        adapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final List<JSONObject> batch = new ArrayList<JSONObject>();
+        try {
+            for (int i = 0; i < 500; i++) {
+                final JSONObject event = new JSONObject();
+                event.put("index", i);
+                batch.add(event);
+            }
+        } catch (JSONException e) {
+            fail("Can't build test events");
+        }
+
+        assertEquals(500, adapter.addJSONBatch(batch, LBDbAdapter.Table.EVENTS));
+        assertEquals(501, adapter.addJSON(new JSONObject(), LBDbAdapter.Table.EVENTS));
+
+        // Closing only releases the connection, the adapter opens it again on demand
+        adapter.close();
+        assertEquals(501, adapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+        long jsonBytes = "{}".length();
+        for (JSONObject event : batch) {
+            jsonBytes += event.toString().length();
+        }
+        final long storedBytes = adapter.getStoredBytes(LBDbAdapter.Table.EVENTS);
+        assertTrue(storedBytes > 0);
+        assertTrue(storedBytes < jsonBytes);
+
+        try {
+            String[] eventsData = adapter.generateDataString(LBDbAdapter.Table.EVENTS);
+            JSONArray events = new JSONArray(eventsData[1]);
+            assertEquals(0, events.getJSONObject(0).getInt("index"));
+        } catch (JSONException e) {
+            fail("Unexpected JSON or lack thereof in batch insert test");
+        }
+
+        adapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+        assertEquals(0, adapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+        assertEquals(0, adapter.getStoredBytes(LBDbAdapter.Table.EVENTS));
+        adapter.deleteDB();
+    }
+
+    public void testReadBatchMaxBytes() throws JSONException {
+        LBDbAdapter adapter = new LBDbAdapter(getContext(), "BatchSizeTestDB");
+        adapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final List<JSONObject> added = new ArrayList<JSONObject>();
+        for (int i = 0; i < 100; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("index", i);
+            event.put("padding", "0123456789012345678901234567890123456789");
+            added.add(event);
+        }
+        adapter.addJSONBatch(added, LBDbAdapter.Table.EVENTS);
+
+        final EventBatch batch = new EventBatch();
+        int read = 0;
+        while (adapter.readBatch(LBDbAdapter.Table.EVENTS, batch, 1000)) {
+            assertTrue(batch.getPayload().length() <= 1000);
+            final JSONArray events = new JSONArray(batch.getPayload().toString());
+            assertEquals(batch.size(), events.length());
+            assertEquals(read, events.getJSONObject(0).getInt("index"));
+            read += events.length();
+            adapter.cleanupEvents(Long.toString(batch.getLastId()), LBDbAdapter.Table.EVENTS);
+        }
+        assertEquals(100, read);
+
+        // An event bigger than the limit still goes out, on its own
+        adapter.addJSONBatch(added.subList(0, 2), LBDbAdapter.Table.EVENTS);
+        assertTrue(adapter.readBatch(LBDbAdapter.Table.EVENTS, batch, 10));
+        assertEquals(1, batch.size());
+        adapter.deleteDB();
+    }
+
+    public void testQuarantine() throws JSONException {
+        LBDbAdapter adapter = new LBDbAdapter(getContext(), "QuarantineTestDB");
+        adapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+        adapter.cleanupQuarantine(Long.MAX_VALUE);
+
+        final List<JSONObject> added = new ArrayList<JSONObject>();
+        for (int i = 0; i < 4; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("index", i);
+            added.add(event);
+        }
+        adapter.addJSONBatch(added, LBDbAdapter.Table.EVENTS);
+        final long storedBytes = adapter.getStoredBytes(LBDbAdapter.Table.EVENTS);
+
+        final EventBatch batch = new EventBatch();
+        assertTrue(adapter.readBatch(LBDbAdapter.Table.EVENTS, batch, 1000, 2));
+        assertEquals(2, batch.size());
+        assertEquals(0, batch.getRowAttempts(0));
+
+        final long[] ids = { batch.getRowId(1) };
+        adapter.recordAttempts(ids, 1, LBDbAdapter.Table.EVENTS);
+        adapter.recordAttempts(ids, 1, LBDbAdapter.Table.EVENTS);
+        assertTrue(adapter.readBatch(LBDbAdapter.Table.EVENTS, batch, 1000, 2));
+        assertEquals(0, batch.getRowAttempts(0));
+        assertEquals(2, batch.getRowAttempts(1));
+
+        // Quarantined events are never read again
+        adapter.quarantineEvents(ids, 1, LBDbAdapter.Table.EVENTS);
+        assertEquals(3, adapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+        assertTrue(adapter.getStoredBytes(LBDbAdapter.Table.EVENTS) < storedBytes);
+        assertEquals(1, adapter.getQuarantineDepth());
+        assertTrue(adapter.readBatch(LBDbAdapter.Table.EVENTS, batch, 1000, 10));
+        final JSONArray events = new JSONArray(batch.getPayload().toString());
+        assertEquals(3, events.length());
+        assertEquals(0, events.getJSONObject(0).getInt("index"));
+        assertEquals(2, events.getJSONObject(1).getInt("index"));
+        assertEquals(3, events.getJSONObject(2).getInt("index"));
+
+        adapter.cleanupQuarantine(Long.MAX_VALUE);
+        assertEquals(0, adapter.getQuarantineDepth());
+        adapter.deleteDB();
+    }
+
+    public void testUploadStateKeptWithDB() {
+        LBDbAdapter adapter = new LBDbAdapter(getContext(), "UploadStateTestDB");
+        adapter.deleteDB();
+
+        // The key prefix and the batches on their way survive closing the database...
+        final String prefix = adapter.getIdempotencyKeyPrefix();
+        assertNotNull(prefix);
+        adapter.recordSentBatch(1, 10);
+        adapter.recordSentBatch(21, 30);
+        adapter.recordSentBatch(11, 20);
+        adapter.close();
+        adapter = new LBDbAdapter(getContext(), "UploadStateTestDB");
+        assertEquals(prefix, adapter.getIdempotencyKeyPrefix());
+        List<long[]> sent = adapter.readSentBatches();
+        assertEquals(3, sent.size());
+        assertEquals(1, sent.get(0)[0]);
+        assertEquals(20, sent.get(1)[1]);
+        assertEquals(21, sent.get(2)[0]);
+
+        // ...a batch sent again in smaller pieces replaces the old one...
+        adapter.recordSentBatch(1, 5);
+        adapter.clearSentBatches(21, 30);
+        sent = adapter.readSentBatches();
+        assertEquals(2, sent.size());
+        assertEquals(5, sent.get(0)[1]);
+        assertEquals(11, sent.get(1)[0]);
+
+        // ...but not deleting it, since row ids start again in a new one
+        adapter.deleteDB();
+        assertFalse(prefix.equals(adapter.getIdempotencyKeyPrefix()));
+        assertEquals(0, adapter.readSentBatches().size());
+        adapter.deleteDB();
+    }
+
+    public void testEventCodec() throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("event", "_retention");
+        event.put("time", 1400000000L);
+        event.put("big", 1L << 40);
+        event.put("negative", -5);
+        event.put("ratio", 0.25);
+        event.put("wifi", false);
+        event.put("hasNfc", true);
+        event.put("nothing", JSONObject.NULL);
+        event.put("randUser", "3f2b9c0a6d4e4b1f8a7c5e2d1b0a9f8e");
+        event.put("name", "\u65e5\u672c\u8a9e \ud83d\ude00");
+        event.put("nested", new JSONObject("{\"list\": [1, 2, \"three\"]}"));
+
+        final EventCodec codec = new EventCodec(4096);
+        final byte[] first = codec.encode(event);
+        final List<String> terms = codec.takeNewTerms();
+        assertTrue(terms.contains("_retention"));
+        assertTrue(terms.contains("randUser"));
+
+        final byte[] second = codec.encode(event);
+        assertEquals(0, codec.takeNewTerms().size());
+        assertEquals(first.length, second.length);
+        assertTrue(first.length < event.toString().length() / 2);
+
+        // A codec reloaded with the stored terms can read what the first one wrote
+        final EventCodec reloaded = new EventCodec(4096);
+        for (int i = 0; i < terms.size(); i++) {
+            reloaded.addTerm(i, terms.get(i));
+        }
+        assertEquals(event.toString(), reloaded.decode(first).toString());
+
+        // With a full dictionary, everything is written inline
+        final EventCodec tiny = new EventCodec(0);
+        assertEquals(event.toString(), tiny.decode(tiny.encode(event)).toString());
+    }
+
+    public void testUpgradeKeepsJSONEvents() throws JSONException {
+        final String dbName = "UpgradeTestDB";
+        getContext().deleteDatabase(dbName);
+        final SQLiteDatabase oldDb = getContext().openOrCreateDatabase(dbName, Context.MODE_PRIVATE, null);
+        oldDb.execSQL("CREATE TABLE events (_id INTEGER PRIMARY KEY AUTOINCREMENT, data STRING NOT NULL, created_at INTEGER NOT NULL);");
+        oldDb.execSQL("CREATE INDEX IF NOT EXISTS time_idx ON events (created_at);");
+        oldDb.execSQL("INSERT INTO events (data, created_at) VALUES ('{\"event\":\"old\"}', 1)");
+        oldDb.execSQL("INSERT INTO events (data, created_at) VALUES ('not an event', 2)");
+        oldDb.setVersion(4);
+        oldDb.close();
+
+        final LBDbAdapter adapter = new LBDbAdapter(getContext(), dbName);
+        final JSONObject added = new JSONObject();
+        added.put("event", "new");
+        assertEquals(3, adapter.addJSON(added, LBDbAdapter.Table.EVENTS));
+
+        // Unreadable rows are skipped and deleted
+        final EventBatch batch = new EventBatch();
+        assertTrue(adapter.readBatch(LBDbAdapter.Table.EVENTS, batch));
+        assertEquals(2, batch.size());
+        assertEquals(3, batch.getLastId());
+        assertEquals(1, batch.getRowId(0));
+        assertEquals(3, batch.getRowId(1));
+        assertEquals(2, adapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+        final JSONArray events = new JSONArray(batch.getPayload().toString());
+        assertEquals(2, events.length());
+        assertEquals("old", events.getJSONObject(0).getString("event"));
+        assertEquals("new", events.getJSONObject(1).getString("event"));
+
+        adapter.cleanupEvents(Long.toString(batch.getLastId()), LBDbAdapter.Table.EVENTS);
+        assertFalse(adapter.readBatch(LBDbAdapter.Table.EVENTS, batch));
+        assertEquals(0, adapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+        assertEquals(0, adapter.getQuarantineDepth());
+        adapter.deleteDB();
+    }
+
     public void testLooperDestruction() {
 
         final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
@@ -124,12 +365,30 @@ public class LogbookBasicTest extends AndroidTestCase {
         // should make sure
         final LBDbAdapter explodingDb = new LBDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, LBDbAdapter.Table table) {
-                messages.add(message);
+            public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
+                messages.addAll(batch);
                 throw new RuntimeException("BANG!");
             }
         };
-        final AnalyticsMessages explodingMessages = new AnalyticsMessages(getContext()) {
+        // Counts the receivers the worker leaves registered
+        final AtomicInteger receivers = new AtomicInteger(0);
+        final Context countingContext = new ContextWrapper(getContext()) {
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter, String permission, Handler handler) {
+                final Intent ret = super.registerReceiver(receiver, filter, permission, handler);
+                if (null != receiver) {
+                    receivers.incrementAndGet();
+                }
+                return ret;
+            }
+
+            @Override
+            public void unregisterReceiver(BroadcastReceiver receiver) {
+                super.unregisterReceiver(receiver);
+                receivers.decrementAndGet();
+            }
+        };
+        final AnalyticsMessages explodingMessages = new AnalyticsMessages(countingContext) {
             // This will throw inside of our worker thread.
             @Override
             public LBDbAdapter makeDbAdapter(Context context) {
@@ -152,6 +411,7 @@ public class LogbookBasicTest extends AndroidTestCase {
             assertNotNull(found);
             Thread.sleep(1000);
             assertTrue(explodingMessages.isDead());
+            assertEquals(0, receivers.get());
 
             logbook.track("event2");
             JSONObject shouldntFind = messages.poll(1, TimeUnit.SECONDS);
@@ -162,27 +422,64 @@ public class LogbookBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testHardKillClosesTransport() throws IOException, InterruptedException {
+        final File file = File.createTempFile("logbook-test", ".ndjson");
+        final CountDownLatch closed = new CountDownLatch(1);
+        final FileTransport transport = new FileTransport(file) {
+            @Override
+            public synchronized void close() throws IOException {
+                super.close();
+                closed.countDown();
+            }
+        };
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext());
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected Transport getPoster() {
+                return transport;
+            }
+        };
+
+        try {
+            // The first flush opens the file, and stopping the worker closes it
+            listener.postToServer();
+            listener.hardKill();
+            assertTrue(closed.await(2, TimeUnit.SECONDS));
+            assertTrue(listener.isDead());
+        } finally {
+            file.delete();
+        }
+    }
+
     public void testMessageQueuing() {
         final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
 
         final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, LBDbAdapter.Table table) {
+            public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
                 try {
-                    messages.put("TABLE " + table.getName());
-                    messages.put(message.toString());
+                    for (JSONObject message : batch) {
+                        messages.put("TABLE " + table.getName());
+                        messages.put(message.toString());
+                    }
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
 
-                return super.addJSON(message, table);
+                return super.addJSONBatch(batch, table);
             }
         };
         mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
 
         final ServerMessage mockPoster = new ServerMessage() {
             @Override
-            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) {
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs, boolean keepAlive) {
                 if (null == nameValuePairs) {
                     fail("User is unidentified, we shouldn't be checking decide. (URL WAS " + endpointUrl + ")");
                     return TestUtils.bytes("{}");
@@ -309,7 +606,7 @@ public class LogbookBasicTest extends AndroidTestCase {
 
         final ServerMessage mockPoster = new ServerMessage() {
             @Override
-            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs) throws IOException {
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs, boolean keepAlive) throws IOException {
                 if (null == nameValuePairs) {
                     assertEquals("DECIDE ENDPOINT?version=1&lib=android&token=Test+Message+Queuing&distinct_id=new+person", endpointUrl);
                     return TestUtils.bytes("{}");
@@ -347,9 +644,9 @@ public class LogbookBasicTest extends AndroidTestCase {
         final List<String> cleanupCalls = new ArrayList<String>();
         final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
             @Override
-            public void cleanupEvents(String last_id, Table table) {
+            public void cleanupEvents(long[] ids, int count, Table table) {
                 cleanupCalls.add("called");
-                super.cleanupEvents(last_id, table);
+                super.cleanupEvents(ids, count, table);
             }
         };
         mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
@@ -369,6 +666,19 @@ public class LogbookBasicTest extends AndroidTestCase {
             protected LBConfig getConfig(Context context) {
                 return config;
             }
+
+            @Override
+            protected RetryPolicy makeRetryPolicy(Context context, LBConfig config) {
+                // Retry when the test flushes, rather than on a timer
+                final SharedPreferences preferences = context.getSharedPreferences(RetryPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE);
+                return new RetryPolicy(preferences, 0, 0, Integer.MAX_VALUE, 0) {
+                    @Override
+                    public long recordFailure(long now) {
+                        super.recordFailure(now);
+                        return 60 * 1000;
+                    }
+                };
+            }
         };
 
         LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Message Queuing") {
@@ -419,136 +729,140 @@ public class LogbookBasicTest extends AndroidTestCase {
         }
     }
 
-    public void testTrackInThread() throws InterruptedException, JSONException {
-        class TestThread extends Thread {
-            BlockingQueue<JSONObject> mMessages;
+    public void testFlushDrainsBacklog() throws InterruptedException, JSONException {
+        final BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
 
-            public TestThread(BlockingQueue<JSONObject> messages) {
-                this.mMessages = messages;
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs, boolean keepAlive) {
+                sent.add(Base64Coder.decodeString(nameValuePairs.get(1).getValue()));
+                return TestUtils.bytes("1\n");
             }
+        };
 
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
             @Override
-            public void run() {
-
-                final LBDbAdapter dbMock = new LBDbAdapter(getContext()) {
-                    @Override
-                    public int addJSON(JSONObject message, LBDbAdapter.Table table) {
-                        mMessages.add(message);
-                        return 1;
-                    }
-                };
-
-                final AnalyticsMessages analyticsMessages = new AnalyticsMessages(getContext()) {
-                    @Override
-                    public LBDbAdapter makeDbAdapter(Context context) {
-                        return dbMock;
-                    }
-                };
-
-                LogbookAPI logbook = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "TEST TOKEN") {
-                    @Override
-                    protected AnalyticsMessages getAnalyticsMessages() {
-                        return analyticsMessages;
-                    }
-                };
-                logbook.clearPreferences();
-                logbook.track("test in thread");
+            public int getFlushInterval() {
+                return -1;
             }
-        }
-
-        //////////////////////////////
 
-        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
-        TestThread testThread = new TestThread(messages);
-        testThread.start();
-        JSONObject found = messages.poll(1, TimeUnit.SECONDS);
-        assertNotNull(found);
-        assertEquals(found.getString("event"), "test in thread");
-        assertTrue(found.has("bluetoothVersion"));
-    }
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
 
-    public void testConfiguration() {
-        final ApplicationInfo appInfo = new ApplicationInfo();
-        appInfo.metaData = new Bundle();
-        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.BulkUploadLimit", 1);
-        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.FlushInterval", 2);
-        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.DataExpiration", 3);
+            @Override
+            public int getMaxBatchBytes() {
+                return 4000;
+            }
+        };
 
-        appInfo.metaData.putString("net.p_lucky.logbk.android.LBConfig.EventsEndpoint", "EVENTS ENDPOINT");
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext());
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
 
-        final PackageManager packageManager = new MockPackageManager() {
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
             @Override
-            public ApplicationInfo getApplicationInfo(String packageName, int flags) {
-                assertEquals(packageName, "TEST PACKAGE NAME");
-                assertTrue((flags & PackageManager.GET_META_DATA) == PackageManager.GET_META_DATA);
-                return appInfo;
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
             }
-        };
 
-        final Context context = new MockContext() {
             @Override
-            public String getPackageName() {
-                return "TEST PACKAGE NAME";
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
             }
 
             @Override
-            public PackageManager getPackageManager() {
-                return packageManager;
+            protected ServerMessage getPoster() {
+                return mockPoster;
             }
         };
 
-        final LBConfig testConfig = LBConfig.readConfig(context);
-        assertEquals(1, testConfig.getBulkUploadLimit());
-        assertEquals(2, testConfig.getFlushInterval());
-        assertEquals(3, testConfig.getDataExpiration());
-        assertEquals("EVENTS ENDPOINT", testConfig.getEventsEndpoint());
-    }
-
-    public void testTrackAcquisition() {
-        doTestTrackEvent(Action.Acquisition);
-    }
-
-    public void testTrackActivation() {
-        doTestTrackEvent(Action.Activation);
-    }
-
-    public void testTrackRetention() {
-        doTestTrackEvent(Action.Retention);
-    }
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Flush Backlog") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
 
-    public void testTrackReferral() {
-        doTestTrackEvent(Action.Referral);
+        for (int i = 0; i < 50; i++) {
+            metrics.track("backlog event");
+        }
+        metrics.flush();
+
+        // A single flush sends everything, in batches no bigger than MaxBatchBytes
+        int batches = 0;
+        int events = 0;
+        while (events < 50) {
+            final String payload = sent.poll(2, TimeUnit.SECONDS);
+            assertNotNull("Only " + events + " events were sent", payload);
+            assertTrue(payload.length() <= mockConfig.getMaxBatchBytes());
+            events += new JSONArray(payload).length();
+            batches++;
+        }
+        assertEquals(50, events);
+        assertTrue(batches > 1);
+        assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
     }
 
-    public void testTrackRevenue() {
-        doTestTrackEvent(Action.Revenue);
+    public void testBatchResponse() {
+        assertNull(BatchResponse.parse("1\n", 3));
+        assertNull(BatchResponse.parse("0", 3));
+        assertNull(BatchResponse.parse("{\"status\":\"ok\"}", 3));
+        assertNull(BatchResponse.parse("{not json", 3));
+
+        final BatchResponse response = BatchResponse.parse(
+                "{\"accepted\":[0,2,7,-1,\"x\"],\"rejected\":[1],\"retry\":[2,3]}\n", 5);
+        assertEquals(5, response.size());
+        assertTrue(response.isAcknowledged(0));
+        assertTrue(response.isAcknowledged(1));
+        assertTrue(response.isRejected(1));
+        assertFalse(response.isAcknowledged(2)); // Retry wins over accepted
+        assertFalse(response.isAcknowledged(3));
+        assertFalse(response.isAcknowledged(4)); // Not listed, so retried
+        assertEquals(2, response.getAcknowledgedCount());
+        assertEquals(1, response.getRejectedCount());
     }
 
-    private void doTestTrackEvent(Action action) {
-        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+    public void testPartialAcceptance() throws IOException, InterruptedException, JSONException {
+        final String[] responses = {
+            "{\"accepted\":[0,2],\"rejected\":[1],\"retry\":[3]}",
+            "{\"accepted\":[0]}",
+        };
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            private int mCount = 0;
 
-        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, LBDbAdapter.Table table) {
-                try {
-                    messages.put("TABLE " + table.getName());
-                    messages.put(message.toString());
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-
-                return super.addJSON(message, table);
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                body.write(TestUtils.bytes(responses[Math.min(mCount++, responses.length - 1)]));
+                return 200;
             }
-        };
-        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+        });
 
         final LBConfig mockConfig = new LBConfig(new Bundle()) {
             @Override
             public int getFlushInterval() {
                 return -1;
             }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getEventsEndpointFormat() {
+                return UPLOAD_FORMAT_JSON;
+            }
         };
 
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext());
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
         final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
             @Override
             protected LBDbAdapter makeDbAdapter(Context context) {
@@ -559,9 +873,19 @@ public class LogbookBasicTest extends AndroidTestCase {
             protected LBConfig getConfig(Context context) {
                 return mockConfig;
             }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return new ServerMessage() {
+                    @Override
+                    public boolean isOnline(Context context) {
+                        return true;
+                    }
+                };
+            }
         };
 
-        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Message Queuing") {
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Partial Acceptance") {
             @Override
             protected AnalyticsMessages getAnalyticsMessages() {
                 return listener;
@@ -569,26 +893,1256 @@ public class LogbookBasicTest extends AndroidTestCase {
         };
 
         try {
-            metrics.getClass().getMethod("track" + action.toString(), null).invoke(metrics, null);
-        } catch (Exception e) {
-            fail("Unexpected interruption");
-        }
+            for (int i = 0; i < 4; i++) {
+                metrics.track("event " + i);
+            }
+            metrics.flush();
 
-        String expectedJSONMessage = "<No message actually received>";
-        try {
-            String messageTable = messages.poll(1, TimeUnit.SECONDS);
-            assertEquals("TABLE " + LBDbAdapter.Table.EVENTS.getName(), messageTable);
+            final JSONArray first = new JSONArray(new String(server.getRequests().poll(2, TimeUnit.SECONDS).body, "UTF-8"));
+            assertEquals(4, first.length());
 
-            expectedJSONMessage = messages.poll(1, TimeUnit.SECONDS);
-            JSONObject message = new JSONObject(expectedJSONMessage);
-            assertEquals(action.getEventName(), message.getString("event"));
-        } catch (InterruptedException e) {
-            fail("Expected a log message about logbook communication but did not recieve it.");
-        } catch (JSONException e) {
-            fail("Expected a JSON object message and got something silly instead: " + expectedJSONMessage);
+            // Only the event the server asked for again is resent
+            metrics.flush();
+            final JSONArray second = new JSONArray(new String(server.getRequests().poll(2, TimeUnit.SECONDS).body, "UTF-8"));
+            assertEquals(1, second.length());
+            assertEquals("event 3", second.getJSONObject(0).getString("event"));
+
+            metrics.flush();
+            assertNull(server.getRequests().poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(0, mockAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+        } finally {
+            server.shutdown();
         }
     }
 
+    public void testPoisonEventQuarantined() throws IOException, InterruptedException, JSONException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                if (new String(request.body, "UTF-8").contains("poison")) {
+                    return 400;
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+
+            @Override
+            public int getMaxEventAttempts() {
+                return 1;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getEventsEndpointFormat() {
+                return UPLOAD_FORMAT_JSON;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext());
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+        mockAdapter.cleanupQuarantine(Long.MAX_VALUE);
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return new ServerMessage() {
+                    @Override
+                    public boolean isOnline(Context context) {
+                        return true;
+                    }
+                };
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Poison Event") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        try {
+            for (int i = 0; i < 6; i++) {
+                metrics.track(i == 3 ? "poison" : "event " + i);
+            }
+            metrics.flush();
+
+            // The refused batch is split until the poison event is on its own, and
+            // everything else is delivered in the same flush
+            final List<String> delivered = new ArrayList<String>();
+            while (delivered.size() < 5) {
+                final TestHttpServer.Request request = server.getRequests().poll(2, TimeUnit.SECONDS);
+                assertNotNull("Only " + delivered + " were delivered", request);
+                final String body = new String(request.body, "UTF-8");
+                if (! body.contains("poison")) {
+                    final JSONArray events = new JSONArray(body);
+                    for (int i = 0; i < events.length(); i++) {
+                        delivered.add(events.getJSONObject(i).getString("event"));
+                    }
+                }
+            }
+            assertEquals(5, delivered.size());
+            assertFalse(delivered.contains("poison"));
+            assertNull(server.getRequests().poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(0, mockAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+            assertEquals(1, mockAdapter.getQuarantineDepth());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testPoisonEventDoesNotStallQueue() throws IOException, InterruptedException, JSONException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                if (new String(request.body, "UTF-8").contains("poison")) {
+                    return 400;
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+
+            @Override
+            public int getMaxEventAttempts() {
+                return 3;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getEventsEndpointFormat() {
+                return UPLOAD_FORMAT_JSON;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext());
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+        mockAdapter.cleanupQuarantine(Long.MAX_VALUE);
+
+        final AtomicInteger failures = new AtomicInteger(0);
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return new ServerMessage() {
+                    @Override
+                    public boolean isOnline(Context context) {
+                        return true;
+                    }
+                };
+            }
+
+            @Override
+            protected RetryPolicy makeRetryPolicy(Context context, LBConfig config) {
+                final SharedPreferences preferences = context.getSharedPreferences(RetryPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE);
+                return new RetryPolicy(preferences, 0, 0, Integer.MAX_VALUE, 0) {
+                    @Override
+                    public long recordFailure(long now) {
+                        failures.incrementAndGet();
+                        return super.recordFailure(now);
+                    }
+                };
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Poison Event Stall") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        try {
+            // The oldest event is the bad one, and everything behind it still goes out in the first flush
+            metrics.track("poison");
+            for (int i = 1; i < 6; i++) {
+                metrics.track("event " + i);
+            }
+            flushAndWait(metrics, listener);
+            assertEquals(1, mockAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+            assertEquals(0, mockAdapter.getQuarantineDepth());
+
+            // It's tried once more each flush until it's been refused MaxEventAttempts times
+            flushAndWait(metrics, listener);
+            assertEquals(1, mockAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+            metrics.track("event 6");
+            flushAndWait(metrics, listener);
+            assertEquals(0, mockAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+            assertEquals(1, mockAdapter.getQuarantineDepth());
+
+            // The server answered every time, so none of that was a failure to back off from
+            assertEquals(0, failures.get());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    // Flushes, and waits for the flush to be over
+    private static void flushAndWait(LogbookAPI metrics, AnalyticsMessages listener) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        metrics.flush();
+        assertTrue(listener.postToServerFromJob(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testParallelUploads() throws IOException, InterruptedException, JSONException {
+        final Map<String, String> bodiesByKey = new HashMap<String, String>();
+        final List<String> delivered = new ArrayList<String>();
+        final List<String> problems = new ArrayList<String>();
+        final AtomicInteger active = new AtomicInteger(0);
+        final AtomicInteger maxActive = new AtomicInteger(0);
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                final int nowActive = active.incrementAndGet();
+                try {
+                    synchronized (maxActive) {
+                        maxActive.set(Math.max(maxActive.get(), nowActive));
+                    }
+                    final String key = request.headers.get("idempotency-key");
+                    final String json = new String(request.body, "UTF-8");
+                    final boolean fail;
+                    synchronized (bodiesByKey) {
+                        if (bodiesByKey.containsKey(key)) {
+                            if (! bodiesByKey.get(key).equals(json)) {
+                                problems.add("Different batch sent with key " + key);
+                            }
+                            fail = false;
+                        } else {
+                            // Every other new batch fails the first time, after a while,
+                            // so responses come back out of order
+                            fail = bodiesByKey.size() % 2 == 1;
+                            bodiesByKey.put(key, json);
+                        }
+                    }
+                    Thread.sleep(fail ? 200 : 20);
+                    if (fail) {
+                        return 503;
+                    }
+
+                    final JSONArray events = new JSONArray(json);
+                    synchronized (delivered) {
+                        for (int i = 0; i < events.length(); i++) {
+                            delivered.add(events.getJSONObject(i).getString("event"));
+                        }
+                    }
+                    body.write(TestUtils.bytes("1\n"));
+                    return 200;
+                } catch (final InterruptedException e) {
+                    throw new IOException("Interrupted");
+                } catch (final JSONException e) {
+                    problems.add("Bad batch " + e);
+                    return 400;
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        });
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+
+            @Override
+            public int getMaxBatchBytes() {
+                return 200;
+            }
+
+            @Override
+            public int getUploadConcurrency() {
+                return 3;
+            }
+
+            @Override
+            public int getRetryBaseDelay() {
+                return 0; // Retry failed batches right away
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getEventsEndpointFormat() {
+                return UPLOAD_FORMAT_JSON;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext());
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return new ServerMessage() {
+                    @Override
+                    public boolean isOnline(Context context) {
+                        return true;
+                    }
+                };
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Parallel Uploads") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        try {
+            for (int i = 0; i < 30; i++) {
+                metrics.track("event " + i);
+            }
+            metrics.flush();
+
+            // Everything arrives exactly once, failed batches being sent again with the same key
+            for (int wait = 0; wait < 50; wait++) {
+                synchronized (delivered) {
+                    if (delivered.size() >= 30) {
+                        break;
+                    }
+                }
+                Thread.sleep(100);
+            }
+            Thread.sleep(500); // For the last responses to be dealt with
+            assertEquals(0, mockAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+            assertEquals(new ArrayList<String>(), problems);
+            synchronized (delivered) {
+                assertEquals(30, delivered.size());
+                for (int i = 0; i < 30; i++) {
+                    assertTrue(delivered.contains("event " + i));
+                }
+            }
+            assertTrue(bodiesByKey.size() > 3);
+            assertTrue(maxActive.get() > 1);
+            assertTrue(maxActive.get() <= 3);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testIdempotencyKeySurvivesRestart() throws IOException, InterruptedException {
+        final AtomicInteger failures = new AtomicInteger(1);
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                // The first request gets no answer the app hears, as if the process was killed while waiting
+                if (failures.getAndDecrement() > 0) {
+                    return 503;
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getEventsEndpointFormat() {
+                return UPLOAD_FORMAT_JSON;
+            }
+        };
+
+        new LBDbAdapter(getContext()).deleteDB();
+        final AnalyticsMessages first = makeRestartableMessages(mockConfig);
+        final AnalyticsMessages second = makeRestartableMessages(mockConfig);
+        try {
+            final LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Key Survives Restart") {
+                @Override
+                protected AnalyticsMessages getAnalyticsMessages() {
+                    return first;
+                }
+            };
+            metrics.track("first");
+            metrics.track("second");
+            metrics.flush();
+            final TestHttpServer.Request failed = server.getRequests().poll(2, TimeUnit.SECONDS);
+            assertNotNull(failed);
+            Thread.sleep(200);
+            first.hardKill();
+            Thread.sleep(200);
+
+            // A new worker, with a new adapter, sends the same batch under the same key
+            second.postToServer();
+            final TestHttpServer.Request retried = server.getRequests().poll(2, TimeUnit.SECONDS);
+            assertNotNull(retried);
+            assertEquals(failed.headers.get("idempotency-key"), retried.headers.get("idempotency-key"));
+            assertEquals(new String(failed.body, "UTF-8"), new String(retried.body, "UTF-8"));
+            assertNull(server.getRequests().poll(500, TimeUnit.MILLISECONDS));
+
+            final LBDbAdapter adapter = new LBDbAdapter(getContext());
+            assertEquals(0, adapter.getQueueDepth(LBDbAdapter.Table.EVENTS));
+            assertEquals(0, adapter.readSentBatches().size());
+            adapter.close();
+        } finally {
+            second.hardKill();
+            server.shutdown();
+        }
+    }
+
+    // Each worker opens the events DB with an adapter of its own, as it would in a new process
+    private AnalyticsMessages makeRestartableMessages(final LBConfig config) {
+        return new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return new ServerMessage() {
+                    @Override
+                    public boolean isOnline(Context context) {
+                        return true;
+                    }
+                };
+            }
+
+            @Override
+            protected RetryPolicy makeRetryPolicy(Context context, LBConfig config) {
+                // Retry whenever asked to
+                final SharedPreferences preferences = context.getSharedPreferences(RetryPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE);
+                return new RetryPolicy(preferences, 0, 0, Integer.MAX_VALUE, 0) {
+                    @Override
+                    public long getDelayUntilNextAttempt(long now) {
+                        return 0;
+                    }
+
+                    @Override
+                    public long recordFailure(long now) {
+                        return 60 * 1000;
+                    }
+                };
+            }
+        };
+    }
+
+    public void testPrefetchWhileUploading() throws InterruptedException, JSONException {
+        final AtomicInteger reads = new AtomicInteger(0);
+        final List<Integer> readsDuringUpload = new ArrayList<Integer>();
+        final BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs, boolean keepAlive) {
+                // A slow upload. The next batch should be read while it's going.
+                final int upload;
+                synchronized (readsDuringUpload) {
+                    upload = readsDuringUpload.size();
+                }
+                try {
+                    for (int wait = 0; wait < 20 && reads.get() < upload + 2; wait++) {
+                        Thread.sleep(50);
+                    }
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                synchronized (readsDuringUpload) {
+                    readsDuringUpload.add(reads.get());
+                }
+                sent.add(Base64Coder.decodeString(nameValuePairs.get(1).getValue()));
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+
+            @Override
+            public int getMaxBatchBytes() {
+                return 400;
+            }
+
+            @Override
+            public int getUploadPrefetchDepth() {
+                return 1;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
+            @Override
+            public boolean readBatch(Table table, EventBatch batch, int maxBytes, int maxRows, long afterId, long throughId) {
+                final boolean ret = super.readBatch(table, batch, maxBytes, maxRows, afterId, throughId);
+                if (ret) {
+                    reads.incrementAndGet();
+                }
+                return ret;
+            }
+        };
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Prefetch") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        for (int i = 0; i < 20; i++) {
+            metrics.track("prefetched event");
+        }
+        metrics.flush();
+
+        int events = 0;
+        while (events < 20) {
+            final String payload = sent.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Only " + events + " events were sent", payload);
+            events += new JSONArray(payload).length();
+        }
+        assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
+
+        // The second batch had already been read when the first went out,
+        // but never more than one batch ahead of the upload
+        synchronized (readsDuringUpload) {
+            assertTrue(readsDuringUpload.size() > 2);
+            for (int i = 0; i < readsDuringUpload.size() - 1; i++) {
+                assertEquals(i + 2, (int) readsDuringUpload.get(i));
+            }
+        }
+    }
+
+    public void testStoreWhileUploading() throws InterruptedException, JSONException {
+        final CountDownLatch uploadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseUpload = new CountDownLatch(1);
+        final BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+        final BlockingQueue<String> stored = new LinkedBlockingQueue<String>();
+
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs, boolean keepAlive) {
+                // A hung connection, until the test lets it go
+                uploadStarted.countDown();
+                try {
+                    releaseUpload.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                sent.add(Base64Coder.decodeString(nameValuePairs.get(1).getValue()));
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
+            @Override
+            public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
+                final int ret = super.addJSONBatch(batch, table);
+                for (final JSONObject event : batch) {
+                    stored.add(event.optString("event"));
+                }
+                return ret;
+            }
+        };
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Store While Uploading") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        metrics.track("before upload");
+        assertEquals("before upload", stored.poll(2, TimeUnit.SECONDS));
+        metrics.flush();
+        assertTrue(uploadStarted.await(2, TimeUnit.SECONDS));
+
+        // The upload is stuck, but new events are still stored
+        metrics.track("during upload");
+        assertEquals("during upload", stored.poll(2, TimeUnit.SECONDS));
+        assertTrue(sent.isEmpty());
+
+        // And once it comes back, the flush carries on with them
+        releaseUpload.countDown();
+        assertEquals("before upload", new JSONArray(sent.poll(2, TimeUnit.SECONDS)).getJSONObject(0).getString("event"));
+        assertEquals("during upload", new JSONArray(sent.poll(2, TimeUnit.SECONDS)).getJSONObject(0).getString("event"));
+        assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    public void testJobFlushBehindFailedUpload() throws InterruptedException {
+        final CountDownLatch uploadStarted = new CountDownLatch(1);
+        final CountDownLatch failUpload = new CountDownLatch(1);
+        final CountDownLatch workerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseWorker = new CountDownLatch(1);
+        final CountDownLatch jobDone = new CountDownLatch(1);
+
+        final ServerMessage mockPoster = new ServerMessage() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs, boolean keepAlive) throws IOException {
+                uploadStarted.countDown();
+                try {
+                    failUpload.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new IOException("Failed for the test");
+            }
+        };
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
+            @Override
+            public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
+                final int ret = super.addJSONBatch(batch, table);
+                if ("hold the worker".equals(batch.get(0).optString("event"))) {
+                    workerBlocked.countDown();
+                    try {
+                        releaseWorker.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return ret;
+            }
+        };
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected ServerMessage getPoster() {
+                return mockPoster;
+            }
+
+            @Override
+            protected RetryPolicy makeRetryPolicy(Context context, LBConfig config) {
+                final SharedPreferences preferences = context.getSharedPreferences(RetryPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE);
+                return new RetryPolicy(preferences, 0, 0, Integer.MAX_VALUE, 0) {
+                    @Override
+                    public long recordFailure(long now) {
+                        super.recordFailure(now);
+                        return 60 * 1000;
+                    }
+                };
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Job Flush Behind Failed Upload") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        metrics.track("will fail");
+        metrics.flush();
+        assertTrue(uploadStarted.await(2, TimeUnit.SECONDS));
+
+        // Keep the worker busy while the upload fails, so the job's flush is queued behind its UPLOAD_DONE
+        metrics.track("hold the worker");
+        assertTrue(workerBlocked.await(2, TimeUnit.SECONDS));
+        failUpload.countDown();
+        Thread.sleep(200);
+        listener.postToServerFromJob(new Runnable() {
+            @Override
+            public void run() {
+                jobDone.countDown();
+            }
+        });
+        releaseWorker.countDown();
+
+        // The retry scheduled for the failure mustn't take the job's flush with it
+        assertTrue(jobDone.await(2, TimeUnit.SECONDS));
+
+        // A dead worker can't call back, so the job is told to finish right away
+        listener.hardKill();
+        for (int i = 0; i < 20 && ! listener.isDead(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(listener.isDead());
+        assertFalse(listener.postToServerFromJob(new Runnable() {
+            @Override
+            public void run() {
+                fail("Dead worker ran a flush callback");
+            }
+        }));
+    }
+
+    public void testLoopbackPipeline() throws IOException, InterruptedException {
+        final AtomicInteger deleted = new AtomicInteger(0);
+        final LoopbackTransport transport = new LoopbackTransport(20, 0);
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return 1000;
+            }
+
+            @Override
+            public int getMaxBatchBytes() {
+                return 300;
+            }
+
+            @Override
+            public int getUploadConcurrency() {
+                return 2;
+            }
+        };
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
+            @Override
+            public void cleanupEvents(long[] ids, int count, Table table) {
+                super.cleanupEvents(ids, count, table);
+                deleted.addAndGet(count);
+            }
+        };
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected Transport getPoster() {
+                return transport;
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Loopback Pipeline") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        try {
+            for (int i = 0; i < 60; i++) {
+                metrics.track("loopback event");
+            }
+            metrics.flush();
+
+            // Everything goes through real HTTP, several batches at a time, and is deleted once accepted
+            for (int wait = 0; wait < 100 && deleted.get() < 60; wait++) {
+                Thread.sleep(100);
+            }
+            assertEquals(60, deleted.get());
+            assertTrue(transport.getRequestCount() > 2);
+            assertEquals(0, transport.getErrorCount());
+            assertEquals(transport.getRequestCount(), transport.getStats().getUploads());
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testTrackInThread() throws InterruptedException, JSONException {
+        class TestThread extends Thread {
+            BlockingQueue<JSONObject> mMessages;
+
+            public TestThread(BlockingQueue<JSONObject> messages) {
+                this.mMessages = messages;
+            }
+
+            @Override
+            public void run() {
+
+                final LBDbAdapter dbMock = new LBDbAdapter(getContext()) {
+                    @Override
+                    public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
+                        mMessages.addAll(batch);
+                        return 1;
+                    }
+                };
+
+                final AnalyticsMessages analyticsMessages = new AnalyticsMessages(getContext()) {
+                    @Override
+                    public LBDbAdapter makeDbAdapter(Context context) {
+                        return dbMock;
+                    }
+                };
+
+                LogbookAPI logbook = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "TEST TOKEN") {
+                    @Override
+                    protected AnalyticsMessages getAnalyticsMessages() {
+                        return analyticsMessages;
+                    }
+                };
+                logbook.clearPreferences();
+                logbook.track("test in thread");
+            }
+        }
+
+        //////////////////////////////
+
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        TestThread testThread = new TestThread(messages);
+        testThread.start();
+        JSONObject found = messages.poll(1, TimeUnit.SECONDS);
+        assertNotNull(found);
+        assertEquals(found.getString("event"), "test in thread");
+        assertTrue(found.has("bluetoothVersion"));
+    }
+
+    public void testSuperPropertiesCache() throws JSONException {
+        final SystemInformation systemInformation = new SystemInformation(getContext());
+        final SuperPropertiesCache cache = new SuperPropertiesCache(getContext(), systemInformation,
+                new Handler(Looper.getMainLooper()), 60 * 1000);
+
+        final JSONObject first = cache.newEventObject();
+        assertEquals("logbk-android", first.getString("libName"));
+        assertTrue(first.has("bluetoothVersion"));
+        first.put("event", "changed a copy");
+
+        final JSONObject second = cache.newEventObject();
+        assertFalse(second.has("event"));
+        assertEquals(first.getString("model"), second.getString("model"));
+
+        cache.invalidate();
+        final JSONObject third = cache.newEventObject();
+        assertEquals(second.length(), third.length());
+    }
+
+    public void testBatchEnvelope() throws JSONException {
+        final JSONArray events = new JSONArray();
+        for (int i = 0; i < 3; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("event", "event " + i);
+            event.put("libName", "logbk-android");
+            event.put("model", "MODEL");
+            event.put("wifi", i != 1);
+            event.put("randUser", "USER");
+            if (i != 2) {
+                event.put("carrier", "CARRIER");
+            }
+            events.put(event);
+        }
+
+        final JSONObject envelope = BatchEnvelope.fromEvents(events);
+        final JSONObject common = envelope.getJSONObject("common");
+        assertEquals("logbk-android", common.getString("libName"));
+        assertEquals("MODEL", common.getString("model"));
+        assertEquals("USER", common.getString("randUser"));
+        assertTrue(common.getBoolean("wifi"));
+        assertFalse(common.has("carrier"));
+        assertFalse(common.has("event"));
+
+        final JSONArray deltas = envelope.getJSONArray("events");
+        assertEquals(3, deltas.length());
+        assertEquals(2, deltas.getJSONObject(0).length()); // event name and carrier
+        assertFalse(deltas.getJSONObject(1).getBoolean("wifi"));
+        assertFalse(deltas.getJSONObject(2).has("wifi"));
+
+        // Every event can be rebuilt from common + its delta
+        for (int i = 0; i < 3; i++) {
+            final JSONObject original = events.getJSONObject(i);
+            final JSONObject delta = deltas.getJSONObject(i);
+            for (final Iterator<?> iter = original.keys(); iter.hasNext();) {
+                final String key = (String) iter.next();
+                final Object value = delta.has(key) ? delta.get(key) : common.get(key);
+                assertEquals(original.get(key), value);
+            }
+        }
+    }
+
+    public void testFormEncoder() throws IOException {
+        final String data = "[{\"event\":\"caf\u00e9 \u2603 \ud83d\ude00\",\"n\":1}]";
+        final List<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new BasicNameValuePair("code", "a token/with+odd=chars"));
+        params.add(new BasicNameValuePair("verbose", "1"));
+
+        final List<NameValuePair> expectedParams = new ArrayList<NameValuePair>(params);
+        expectedParams.add(new BasicNameValuePair("data", Base64Coder.encodeString(data)));
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new UrlEncodedFormEntity(expectedParams, "UTF-8").writeTo(expected);
+
+        // A tiny buffer, so the body is written out in several pieces
+        final FormEncoder encoder = new FormEncoder(7);
+        for (int i = 0; i < 2; i++) {
+            encoder.begin(null);
+            for (final NameValuePair param : params) {
+                encoder.writeField(param.getName(), param.getValue());
+            }
+            encoder.writeBase64Field("data", data);
+            assertEquals(expected.size(), encoder.end());
+
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            encoder.begin(actual);
+            for (final NameValuePair param : params) {
+                encoder.writeField(param.getName(), param.getValue());
+            }
+            encoder.writeBase64Field("data", data);
+            assertEquals(expected.size(), encoder.end());
+            assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+        }
+    }
+
+    public void testConfiguration() {
+        final ApplicationInfo appInfo = new ApplicationInfo();
+        appInfo.metaData = new Bundle();
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.BulkUploadLimit", 1);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.FlushInterval", 2);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.DataExpiration", 3);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.MaxBatchBytes", 4);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.FlushTimeBudget", 5);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.FlushByteBudget", 6);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.RetryBaseDelay", 7);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.RetryMaxDelay", 8);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.CircuitBreakerThreshold", 9);
+        appInfo.metaData.putInt("net.p_lucky.logbk.android.LBConfig.CircuitBreakerCooldown", 10);
+
+        appInfo.metaData.putString("net.p_lucky.logbk.android.LBConfig.EventsEndpoint", "EVENTS ENDPOINT");
+        appInfo.metaData.putString("net.p_lucky.logbk.android.LBConfig.BatchEndpoint", "BATCH ENDPOINT");
+        appInfo.metaData.putString("net.p_lucky.logbk.android.LBConfig.BatchEndpointFormat", "JSON");
+        appInfo.metaData.putBoolean("net.p_lucky.logbk.android.LBConfig.StreamingUpload", true);
+        appInfo.metaData.putString("net.p_lucky.logbk.android.LBConfig.RequestCompression", "GZIP");
+
+        final PackageManager packageManager = new MockPackageManager() {
+            @Override
+            public ApplicationInfo getApplicationInfo(String packageName, int flags) {
+                assertEquals(packageName, "TEST PACKAGE NAME");
+                assertTrue((flags & PackageManager.GET_META_DATA) == PackageManager.GET_META_DATA);
+                return appInfo;
+            }
+        };
+
+        final Context context = new MockContext() {
+            @Override
+            public String getPackageName() {
+                return "TEST PACKAGE NAME";
+            }
+
+            @Override
+            public PackageManager getPackageManager() {
+                return packageManager;
+            }
+        };
+
+        final LBConfig testConfig = LBConfig.readConfig(context);
+        assertEquals(1, testConfig.getBulkUploadLimit());
+        assertEquals(2, testConfig.getFlushInterval());
+        assertEquals(3, testConfig.getDataExpiration());
+        assertEquals(4, testConfig.getMaxBatchBytes());
+        assertEquals(5, testConfig.getFlushTimeBudget());
+        assertEquals(6, testConfig.getFlushByteBudget());
+        assertEquals(7, testConfig.getRetryBaseDelay());
+        assertEquals(8, testConfig.getRetryMaxDelay());
+        assertEquals(9, testConfig.getCircuitBreakerThreshold());
+        assertEquals(10, testConfig.getCircuitBreakerCooldown());
+        assertEquals("EVENTS ENDPOINT", testConfig.getEventsEndpoint());
+        assertEquals(LBConfig.UPLOAD_FORMAT_FORM, testConfig.getEventsEndpointFormat());
+        assertEquals("BATCH ENDPOINT", testConfig.getBatchEndpoint());
+        assertEquals(LBConfig.UPLOAD_FORMAT_JSON, testConfig.getBatchEndpointFormat());
+        assertTrue(testConfig.getStreamingUpload());
+        assertEquals("gzip", testConfig.getRequestCompression());
+    }
+
+    public void testTrackAcquisition() {
+        doTestTrackEvent(Action.Acquisition);
+    }
+
+    public void testTrackActivation() {
+        doTestTrackEvent(Action.Activation);
+    }
+
+    public void testTrackRetention() {
+        doTestTrackEvent(Action.Retention);
+    }
+
+    public void testTrackReferral() {
+        doTestTrackEvent(Action.Referral);
+    }
+
+    public void testTrackRevenue() {
+        doTestTrackEvent(Action.Revenue);
+    }
+
+    private void doTestTrackEvent(Action action) {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
+            @Override
+            public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
+                try {
+                    for (JSONObject message : batch) {
+                        messages.put("TABLE " + table.getName());
+                        messages.put(message.toString());
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                return super.addJSONBatch(batch, table);
+            }
+        };
+        mockAdapter.cleanupEvents(Long.MAX_VALUE, LBDbAdapter.Table.EVENTS);
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Message Queuing") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        try {
+            metrics.getClass().getMethod("track" + action.toString(), null).invoke(metrics, null);
+        } catch (Exception e) {
+            fail("Unexpected interruption");
+        }
+
+        String expectedJSONMessage = "<No message actually received>";
+        try {
+            String messageTable = messages.poll(1, TimeUnit.SECONDS);
+            assertEquals("TABLE " + LBDbAdapter.Table.EVENTS.getName(), messageTable);
+
+            expectedJSONMessage = messages.poll(1, TimeUnit.SECONDS);
+            JSONObject message = new JSONObject(expectedJSONMessage);
+            assertEquals(action.getEventName(), message.getString("event"));
+        } catch (InterruptedException e) {
+            fail("Expected a log message about logbook communication but did not recieve it.");
+        } catch (JSONException e) {
+            fail("Expected a JSON object message and got something silly instead: " + expectedJSONMessage);
+        }
+    }
+
+    public void testTrackEventBuilder() {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+
+        final LBDbAdapter mockAdapter = new LBDbAdapter(getContext()) {
+            @Override
+            public int addJSONBatch(List<JSONObject> batch, LBDbAdapter.Table table) {
+                messages.addAll(batch);
+                return 1;
+            }
+        };
+
+        final LBConfig mockConfig = new LBConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected LBDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected LBConfig getConfig(Context context) {
+                return mockConfig;
+            }
+        };
+
+        LogbookAPI metrics = new TestUtils.CleanLogbookAPI(getContext(), mMockPreferences, "Test Event Builder") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        final EventBuilder event = metrics.newEvent("scroll")
+                .put("depth", 12)
+                .put("ratio", 0.5)
+                .put("fling", true)
+                .put("screen", "main")
+                .put("depth", 13);
+        assertEquals(4, event.size());
+        metrics.track(event);
+
+        try {
+            final JSONObject found = messages.poll(1, TimeUnit.SECONDS);
+            assertNotNull(found);
+            assertEquals("scroll", found.getString("event"));
+            assertEquals(13, found.getLong("depth"));
+            assertEquals(0.5, found.getDouble("ratio"));
+            assertTrue(found.getBoolean("fling"));
+            assertEquals("main", found.getString("screen"));
+            assertEquals(metrics.getDistinctId(), found.getString("randUser"));
+            assertTrue(found.has("time"));
+            assertTrue(found.has("libName"));
+        } catch (InterruptedException e) {
+            fail("Expected a tracked event but did not recieve it.");
+        } catch (JSONException e) {
+            fail("Unexpected JSON from tracked event builder");
+        }
+
+        final EventBuilder recycled = metrics.newEvent("recycled");
+        assertEquals("recycled", recycled.getEventName());
+        assertEquals(0, recycled.size());
+    }
+
     public void testGetToken() {
         LogbookAPI.getInstance(getContext(), "TOKEN1");
         LogbookAPI.getInstance(getContext(), "TOKEN2");
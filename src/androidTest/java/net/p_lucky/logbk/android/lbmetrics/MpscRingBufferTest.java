@@ -0,0 +1,151 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MpscRingBufferTest extends AndroidTestCase {
+
+    public void testOfferAndPoll() {
+        final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(3);
+        assertEquals(4, buffer.capacity());
+        assertNull(buffer.poll());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    public void testManyProducers() throws InterruptedException {
+        final int producerCount = 4;
+        final int perProducer = 10000;
+        final MpscRingBuffer<long[]> buffer = new MpscRingBuffer<long[]>(64);
+        final CountDownLatch done = new CountDownLatch(producerCount);
+
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        final long[] element = { producer, i };
+                        while (! buffer.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // Every element arrives exactly once, in order per producer
+        final int[] nextExpected = new int[producerCount];
+        int received = 0;
+        while (received < producerCount * perProducer) {
+            final long[] element = buffer.poll();
+            if (null == element) {
+                Thread.yield();
+                continue;
+            }
+            final int producer = (int) element[0];
+            assertEquals(nextExpected[producer], element[1]);
+            nextExpected[producer]++;
+            received++;
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertNull(buffer.poll());
+    }
+
+    // Not a pass/fail test- logs events per second handed to a worker thread by N producers,
+    // using a Message per event (the old path) and the ring buffer with a single drain message.
+    public void testThroughput() throws InterruptedException {
+        final HandlerThread thread = new HandlerThread("MpscRingBufferTest", Thread.MIN_PRIORITY);
+        thread.start();
+        try {
+            for (int producers = 1; producers <= 8; producers = producers * 2) {
+                final double perMessage = measure(thread, producers, false);
+                final double ring = measure(thread, producers, true);
+                Log.i(LOGTAG, producers + " producers: " + Math.round(perMessage) + " events/s with a message per event, " +
+                        Math.round(ring) + " events/s with the ring buffer");
+            }
+        } finally {
+            thread.quit();
+        }
+    }
+
+    private double measure(HandlerThread thread, final int producerCount, final boolean useRing)
+            throws InterruptedException {
+        final int perProducer = 20000;
+        final Object lock = new Object();
+        final Object event = new Object();
+        final MpscRingBuffer<Object> buffer = new MpscRingBuffer<Object>(1024);
+        final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        final CountDownLatch consumed = new CountDownLatch(producerCount * perProducer);
+
+        final Handler handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (useRing) {
+                    drainScheduled.set(false);
+                    while (buffer.poll() != null) {
+                        consumed.countDown();
+                    }
+                }
+                if (null != msg.obj) {
+                    consumed.countDown();
+                }
+            }
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producerCount; p++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        if (useRing && buffer.offer(event)) {
+                            if (drainScheduled.compareAndSet(false, true)) {
+                                synchronized (lock) {
+                                    handler.sendEmptyMessage(0);
+                                }
+                            }
+                        } else {
+                            synchronized (lock) {
+                                handler.sendMessage(handler.obtainMessage(0, event));
+                            }
+                        }
+                    }
+                }
+            }.start();
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        assertTrue(consumed.await(60, TimeUnit.SECONDS));
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return (producerCount * perProducer) / (elapsedNanos / 1e9);
+    }
+
+    private static final String LOGTAG = "MpscRingBufferTest";
+}
@@ -0,0 +1,90 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class RetryPolicyTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPreferences = getContext().getSharedPreferences("LOGBOOK_TEST_RETRY_POLICY", Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    public void testBackoff() {
+        final RetryPolicy policy = new RetryPolicy(mPreferences, 1000, 10000, 100, 60000, new Random(1));
+        assertEquals(0, policy.getDelayUntilNextAttempt(NOW));
+
+        long ceiling = 1000;
+        for (int i = 1; i <= 10; i++) {
+            final long delay = policy.recordFailure(NOW);
+            assertTrue(delay >= 0);
+            assertTrue("Delay " + delay + " after " + i + " failures", delay <= ceiling);
+            assertEquals(delay, policy.getDelayUntilNextAttempt(NOW));
+            assertEquals(0, policy.getDelayUntilNextAttempt(NOW + delay));
+            ceiling = Math.min(ceiling * 2, 10000);
+        }
+        assertEquals(10, policy.getConsecutiveFailures());
+        assertFalse(policy.isCircuitOpen());
+
+        policy.recordSuccess();
+        assertEquals(0, policy.getConsecutiveFailures());
+        assertEquals(0, policy.getDelayUntilNextAttempt(NOW));
+    }
+
+    public void testJitterSpreadsRetries() {
+        final RetryPolicy policy = new RetryPolicy(mPreferences, 1000, 10000, 100, 60000, new Random(2));
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 100; i++) {
+            final long delay = policy.recordFailure(NOW);
+            policy.recordSuccess();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min < 250);
+        assertTrue(max > 750);
+    }
+
+    public void testCircuitBreaker() {
+        final RetryPolicy policy = new RetryPolicy(mPreferences, 1000, 10000, 3, 60000, new Random(3));
+        policy.recordFailure(NOW);
+        policy.recordFailure(NOW);
+        assertFalse(policy.isCircuitOpen());
+
+        final long delay = policy.recordFailure(NOW);
+        assertTrue(policy.isCircuitOpen());
+        assertTrue(delay >= 30000 && delay <= 60000);
+
+        // Half open: one failure after the cool down opens it again
+        final long reopened = policy.recordFailure(NOW + delay);
+        assertTrue(policy.isCircuitOpen());
+        assertTrue(reopened >= 30000);
+
+        policy.recordSuccess();
+        assertFalse(policy.isCircuitOpen());
+    }
+
+    public void testStatePersists() {
+        final RetryPolicy policy = new RetryPolicy(mPreferences, 1000, 10000, 3, 60000, new Random(4));
+        policy.recordFailure(NOW);
+        policy.recordFailure(NOW);
+        final long delay = policy.recordFailure(NOW);
+
+        final RetryPolicy relaunched = new RetryPolicy(mPreferences, 1000, 10000, 3, 60000, new Random(5));
+        assertEquals(3, relaunched.getConsecutiveFailures());
+        assertTrue(relaunched.isCircuitOpen());
+        assertEquals(delay, relaunched.getDelayUntilNextAttempt(NOW));
+
+        // If the clock goes back a day, we still don't wait longer than the cool down
+        assertEquals(60000, relaunched.getDelayUntilNextAttempt(NOW - 24 * 60 * 60 * 1000));
+    }
+
+    private SharedPreferences mPreferences;
+
+    private static final long NOW = 1400000000000L;
+}
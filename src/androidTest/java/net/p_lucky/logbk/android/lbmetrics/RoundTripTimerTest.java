@@ -0,0 +1,122 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RoundTripTimerTest extends AndroidTestCase {
+
+    public void testTimeouts() {
+        final RoundTripTimer timer = new RoundTripTimer(100, 5000);
+
+        // Nothing measured yet
+        assertEquals(2000, timer.getTimeout("http://a", 2000));
+        assertEquals(5000, timer.getTimeout("http://a", 10000));
+        assertEquals(-1.0, timer.getSmoothedRtt("http://a"));
+
+        // The first answer sets the variance to half the round trip
+        timer.recordRoundTrip("http://a", 400);
+        assertEquals(400.0, timer.getSmoothedRtt("http://a"), 0.01);
+        assertEquals(200.0, timer.getRttVariance("http://a"), 0.01);
+        assertEquals(400 + 4 * 200, timer.getTimeout("http://a", 2000));
+
+        // Steady answers bring the timeout down towards the round trip
+        for (int i = 0; i < 50; i++) {
+            timer.recordRoundTrip("http://a", 400);
+        }
+        assertEquals(400.0, timer.getSmoothedRtt("http://a"), 0.01);
+        assertTrue(timer.getRttVariance("http://a") < 1);
+        assertEquals(410, timer.getTimeout("http://a", 2000));
+
+        // Jittery ones push it up
+        timer.recordRoundTrip("http://a", 1200);
+        assertEquals(500.0, timer.getSmoothedRtt("http://a"), 0.5);
+        assertEquals(200.0, timer.getRttVariance("http://a"), 0.5);
+        assertEquals(1300, timer.getTimeout("http://a", 2000), 2);
+
+        // Each timeout doubles it, up to the bound, and an answer undoes that
+        timer.recordTimeout("http://a");
+        assertEquals(2600, timer.getTimeout("http://a", 2000), 4);
+        timer.recordTimeout("http://a");
+        assertEquals(5000, timer.getTimeout("http://a", 2000));
+        timer.recordRoundTrip("http://a", 500);
+        assertTrue(timer.getTimeout("http://a", 2000) < 1300);
+
+        // And never below the lower bound
+        for (int i = 0; i < 50; i++) {
+            timer.recordRoundTrip("http://b", 2);
+        }
+        assertEquals(100, timer.getTimeout("http://b", 2000));
+
+        // An endpoint that timed out before ever answering backs off from the initial timeout
+        timer.recordTimeout("http://c");
+        assertEquals(4000, timer.getTimeout("http://c", 2000));
+
+        // The read timeout allows for setting up a new connection, but connects that
+        // reused a pooled one don't bring that down
+        assertEquals(100, timer.getReadTimeout("http://b", 2000));
+        timer.recordSetup("http://b", 600);
+        assertEquals(700, timer.getReadTimeout("http://b", 2000));
+        timer.recordSetup("http://b", 0);
+        assertEquals(700, timer.getReadTimeout("http://b", 2000));
+        timer.recordSetup("http://b", 1400);
+        assertEquals(800, timer.getReadTimeout("http://b", 2000));
+        assertEquals(100, timer.getTimeout("http://b", 2000));
+        assertEquals(5000, timer.getReadTimeout("http://d", 10000));
+    }
+
+    public void testAdaptiveReadTimeout() throws IOException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                try {
+                    Thread.sleep(mDelay);
+                } catch (final InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final ServerMessage poster = new ServerMessage(200, 3000);
+            final List<NameValuePair> params = new ArrayList<NameValuePair>();
+            params.add(new BasicNameValuePair("data", "W10="));
+
+            // A quick server is soon given the shortest timeout
+            mDelay = 0;
+            for (int i = 0; i < 20; i++) {
+                poster.performRequest(server.getUrl(), params, false);
+            }
+            assertTrue(poster.getRoundTrips().getSmoothedRtt(server.getUrl()) < 200);
+            assertEquals(200, poster.getRoundTrips().getTimeout(server.getUrl(), 10000));
+
+            // So when it slows down, it times out, and is given longer until it answers
+            mDelay = 600;
+            for (int i = 0; i < 2; i++) {
+                try {
+                    poster.performRequest(server.getUrl(), params, false);
+                    fail("Request should have timed out");
+                } catch (final SocketTimeoutException e) {
+                    ; // Expected
+                }
+            }
+            assertEquals(2, poster.getStats().getTimeouts());
+            assertEquals(800, poster.getRoundTrips().getTimeout(server.getUrl(), 10000));
+            assertEquals("1\n", new String(poster.performRequest(server.getUrl(), params, false), "UTF-8"));
+            assertTrue(poster.getRoundTrips().getSmoothedRtt(server.getUrl()) > 50);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private volatile long mDelay;
+}
@@ -0,0 +1,236 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.test.AndroidTestCase;
+
+import net.p_lucky.logbk.android.util.Base64Coder;
+import net.p_lucky.logbk.android.util.BodyCompressor;
+import net.p_lucky.logbk.android.util.FormEncoder;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ServerMessageTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final StringBuilder data = new StringBuilder("[");
+        for (int i = 0; i < 50; i++) {
+            if (i > 0) {
+                data.append(',');
+            }
+            data.append("{\"event\":\"test\",\"libName\":\"logbk-android\",\"time\":").append(1400000000 + i).append('}');
+        }
+        data.append(']');
+        mData = data.toString();
+
+        mParams = new ArrayList<NameValuePair>();
+        mParams.add(new BasicNameValuePair("code", "TEST TOKEN"));
+    }
+
+    public void testBodyCompressor() throws IOException {
+        final byte[] body = TestUtils.bytes(mData);
+        for (final String encoding : new String[] { BodyCompressor.GZIP, BodyCompressor.DEFLATE }) {
+            final BodyCompressor compressor = new BodyCompressor(encoding);
+            for (int i = 0; i < 2; i++) { // The second body reuses the buffers from the first
+                final OutputStream out = compressor.begin();
+                out.write(body, 0, 10);
+                out.write(body, 10, body.length - 10);
+                final int length = compressor.finish();
+                assertEquals(body.length, compressor.getInputLength());
+                assertTrue(length < body.length / 4);
+
+                final byte[] compressed = new byte[length];
+                System.arraycopy(compressor.getBuffer(), 0, compressed, 0, length);
+                assertEquals(mData, decompress(encoding, compressed));
+            }
+        }
+    }
+
+    public void testCompressedRequest() throws IOException, InterruptedException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final ServerMessage poster = new ServerMessage();
+            poster.setRequestCompression(BodyCompressor.GZIP);
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, new FormEncoder(), false);
+
+            final TestHttpServer.Request request = server.getRequests().poll(2, TimeUnit.SECONDS);
+            assertEquals("gzip", request.headers.get("content-encoding"));
+            final String form = decompress("gzip", request.body);
+            assertEquals("code=TEST+TOKEN&data=" + URLEncoder.encode(Base64Coder.encodeString(mData), "UTF-8"), form);
+
+            final UploadStats stats = poster.getStats();
+            assertEquals(1, stats.getUploads());
+            assertEquals(form.length(), stats.getBodyBytes());
+            assertEquals(request.body.length, stats.getSentBytes());
+            assertTrue(stats.getCompressionRatio() < 0.5);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testCompressionFallback() throws IOException, InterruptedException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                if (request.headers.containsKey("content-encoding")) {
+                    return 415;
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final ServerMessage poster = new ServerMessage();
+            poster.setRequestCompression(BodyCompressor.GZIP);
+            assertEquals("1\n", new String(poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, new FormEncoder(), false), "UTF-8"));
+
+            // Rejected, then retried right away without compression
+            assertEquals("gzip", server.getRequests().poll(2, TimeUnit.SECONDS).headers.get("content-encoding"));
+            assertNull(server.getRequests().poll(2, TimeUnit.SECONDS).headers.get("content-encoding"));
+
+            // And not compressed again
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, new FormEncoder(), false);
+            assertNull(server.getRequests().poll(2, TimeUnit.SECONDS).headers.get("content-encoding"));
+            assertNull(server.getRequests().poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(1.0, poster.getStats().getCompressionRatio());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testJsonRequest() throws IOException, InterruptedException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final Map<String, String> headers = new HashMap<String, String>();
+            headers.put("X-Logbook-Token", "TEST TOKEN");
+            final String json = "[{\"event\":\"caf\u00e9\"}]";
+
+            final ServerMessage poster = new ServerMessage();
+            poster.performJsonRequest(server.getUrl(), headers, json, new FormEncoder(), false);
+
+            final TestHttpServer.Request request = server.getRequests().poll(2, TimeUnit.SECONDS);
+            assertEquals("POST", request.method);
+            assertEquals("application/json; charset=utf-8", request.headers.get("content-type"));
+            assertEquals("TEST TOKEN", request.headers.get("x-logbook-token"));
+            assertEquals(json, new String(request.body, "UTF-8"));
+            assertEquals(json.length() + 1, request.body.length); // \u00e9 is two bytes of UTF-8
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testConnectionReuse() throws IOException, InterruptedException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final ServerMessage poster = new ServerMessage();
+            final FormEncoder encoder = new FormEncoder();
+
+            // The batches of one flush share a connection...
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, true);
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, true);
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, false);
+            assertEquals(1, server.getConnectionCount());
+            for (int i = 0; i < 2; i++) {
+                assertFalse("close".equalsIgnoreCase(server.getRequests().poll(2, TimeUnit.SECONDS).headers.get("connection")));
+            }
+            assertEquals("close", server.getRequests().poll(2, TimeUnit.SECONDS).headers.get("connection"));
+
+            // ...and the last one closes it, so the next flush starts afresh
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, false);
+            assertEquals(2, server.getConnectionCount());
+            assertEquals(4, poster.getStats().getUploads());
+            assertEquals(0, poster.getStats().getHandshakes()); // Only TLS handshakes are counted
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testClosedConnections() throws IOException, InterruptedException {
+        final TestHttpServer server = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public int respond(TestHttpServer.Request request, ByteArrayOutputStream body) throws IOException {
+                if (mHangUp) {
+                    throw new IOException("Hanging up without an answer");
+                }
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        try {
+            final ServerMessage poster = new ServerMessage();
+            final FormEncoder encoder = new FormEncoder();
+
+            // A pooled connection the server has closed since is given up for a new one
+            poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, true);
+            server.closeConnections();
+            Thread.sleep(100);
+            assertEquals("1\n", new String(poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, true), "UTF-8"));
+            assertEquals(2, server.getConnectionCount());
+
+            // But a server that always hangs up hasn't taken the request, so it mustn't look sent
+            mHangUp = true;
+            try {
+                poster.performStreamingRequest(server.getUrl(), mParams, "data", mData, encoder, false);
+                fail("Request should have failed");
+            } catch (final IOException e) {
+                ; // Expected
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static String decompress(String encoding, byte[] compressed) throws IOException {
+        InputStream in = new ByteArrayInputStream(compressed);
+        in = BodyCompressor.GZIP.equals(encoding) ? new GZIPInputStream(in) : new InflaterInputStream(in);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private String mData;
+    private volatile boolean mHangUp;
+    private List<NameValuePair> mParams;
+}
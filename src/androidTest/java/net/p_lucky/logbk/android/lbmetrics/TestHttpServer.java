@@ -0,0 +1,34 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A {@link LoopbackServer} that keeps every request it gets, for testing ServerMessage
+ * against real connections.
+ */
+public class TestHttpServer extends LoopbackServer {
+
+    public TestHttpServer(Responder responder) throws IOException {
+        this(responder, new LinkedBlockingQueue<Request>());
+    }
+
+    private TestHttpServer(final Responder responder, final BlockingQueue<Request> requests) throws IOException {
+        super(new Responder() {
+            @Override
+            public int respond(Request request, ByteArrayOutputStream body) throws IOException {
+                requests.add(request);
+                return responder.respond(request, body);
+            }
+        });
+        mRequests = requests;
+    }
+
+    public BlockingQueue<Request> getRequests() {
+        return mRequests;
+    }
+
+    private final BlockingQueue<Request> mRequests;
+}
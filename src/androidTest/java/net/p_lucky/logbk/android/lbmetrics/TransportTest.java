@@ -0,0 +1,183 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.test.AndroidTestCase;
+
+import net.p_lucky.logbk.android.util.Base64Coder;
+import net.p_lucky.logbk.android.util.FormEncoder;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class TransportTest extends AndroidTestCase {
+
+    public void testFileTransport() throws IOException, JSONException {
+        final File file = File.createTempFile("logbook-test", ".ndjson");
+        try {
+            final FileTransport transport = new FileTransport(file);
+            final FormEncoder encoder = new FormEncoder();
+
+            // Every way of sending events writes one line per event
+            final List<NameValuePair> params = new ArrayList<NameValuePair>();
+            params.add(new BasicNameValuePair("code", "TEST TOKEN"));
+            params.add(new BasicNameValuePair("data", Base64Coder.encodeString("[{\"event\":\"form 1\"},{\"event\":\"form 2\"}]")));
+            assertEquals("1\n", new String(transport.performRequest("http://example.com/track", params, false), "UTF-8"));
+            transport.performStreamingRequest("http://example.com/track", params.subList(0, 1), "data",
+                    "[{\"event\":\"streamed\"}]", encoder, false);
+            transport.performJsonRequest("http://example.com/track", new HashMap<String, String>(),
+                    "[{\"event\":\"caf\u00e9\"}]", encoder, false);
+
+            // Envelopes are unpacked, with each event's own properties winning
+            final JSONObject envelope = new JSONObject();
+            envelope.put("common", new JSONObject("{\"model\":\"Nexus 5\"}"));
+            envelope.put("events", new JSONArray("[{\"event\":\"enveloped 1\"},{\"event\":\"enveloped 2\",\"model\":\"other\"}]"));
+            transport.performJsonRequest("http://example.com/batch", new HashMap<String, String>(), envelope.toString(), encoder, false);
+            transport.close();
+
+            final List<String> lines = readLines(file);
+            assertEquals(6, lines.size());
+            assertEquals("form 1", new JSONObject(lines.get(0)).getString("event"));
+            assertEquals("form 2", new JSONObject(lines.get(1)).getString("event"));
+            assertEquals("streamed", new JSONObject(lines.get(2)).getString("event"));
+            assertEquals("caf\u00e9", new JSONObject(lines.get(3)).getString("event"));
+            assertEquals("Nexus 5", new JSONObject(lines.get(4)).getString("model"));
+            assertEquals("other", new JSONObject(lines.get(5)).getString("model"));
+            assertEquals(4, transport.getStats().getUploads());
+            assertEquals(file.length(), transport.getStats().getSentBytes());
+
+            // Closed for good, so nothing is lost to a request made too late
+            try {
+                transport.performJsonRequest("http://example.com/track", new HashMap<String, String>(), "[{\"event\":\"late\"}]", encoder, false);
+                fail("Request made after close");
+            } catch (final IOException e) {
+                assertFalse(e instanceof ServerMessage.RejectedRequestException);
+            }
+
+            // The next transport appends to what's there
+            final FileTransport next = new FileTransport(file);
+            next.performJsonRequest("http://example.com/track", new HashMap<String, String>(), "[{\"event\":\"later\"}]", encoder, false);
+            next.close();
+            assertEquals(7, readLines(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testFileTransportRefusesBadData() throws IOException {
+        final File file = File.createTempFile("logbook-test", ".ndjson");
+        try {
+            final FileTransport transport = new FileTransport(file);
+            try {
+                transport.performJsonRequest("http://example.com/track", new HashMap<String, String>(), "[{\"event\":", new FormEncoder(), false);
+                fail("Broken JSON was written");
+            } catch (final ServerMessage.RejectedRequestException e) {
+                assertTrue(e.isBodyRejected());
+            }
+            transport.close();
+            assertEquals(0, file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testLoopbackTransport() throws IOException {
+        final LoopbackTransport transport = new LoopbackTransport(200, 0);
+        try {
+            final List<NameValuePair> params = new ArrayList<NameValuePair>();
+            params.add(new BasicNameValuePair("code", "TEST TOKEN"));
+            params.add(new BasicNameValuePair("data", Base64Coder.encodeString("[{\"event\":\"test\"}]")));
+
+            // Sent to the loopback server, whatever the endpoint, after the latency
+            final long start = System.currentTimeMillis();
+            assertEquals("1\n", new String(transport.performRequest("https://tracker.invalid/v1/track", params, false), "UTF-8"));
+            assertTrue(System.currentTimeMillis() - start >= 200);
+            assertEquals(1, transport.getRequestCount());
+            assertTrue(transport.getAcceptedBytes() > 0);
+
+            // Injected errors look like any other refusal
+            transport.setLatency(0);
+            transport.setErrorRate(1.0);
+            try {
+                transport.performRequest("https://tracker.invalid/v1/track", params, false);
+                fail("Request should have failed");
+            } catch (final ServerMessage.RejectedRequestException e) {
+                assertEquals(503, e.getResponseCode());
+                assertFalse(e.isBodyRejected());
+            }
+            transport.setErrorStatus(400);
+            try {
+                transport.performRequest("https://tracker.invalid/v1/track", params, false);
+                fail("Request should have failed");
+            } catch (final ServerMessage.RejectedRequestException e) {
+                assertTrue(e.isBodyRejected());
+            }
+            assertEquals(3, transport.getRequestCount());
+            assertEquals(2, transport.getErrorCount());
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testLoopbackServerShutdown() throws IOException {
+        final LoopbackServer server = new LoopbackServer(new LoopbackServer.Responder() {
+            @Override
+            public int respond(LoopbackServer.Request request, ByteArrayOutputStream body) throws IOException {
+                body.write(TestUtils.bytes("1\n"));
+                return 200;
+            }
+        });
+
+        // A keep-alive connection, left open after its request like a pooled one
+        final URL url = new URL(server.getUrl());
+        final Socket socket = new Socket(url.getHost(), url.getPort());
+        try {
+            socket.setSoTimeout(2000);
+            final OutputStream out = socket.getOutputStream();
+            out.write(TestUtils.bytes("GET / HTTP/1.1\r\nHost: " + url.getHost() + "\r\n\r\n"));
+            out.flush();
+            final InputStream in = socket.getInputStream();
+            final byte[] buffer = new byte[1024];
+            assertTrue(in.read(buffer) > 0);
+
+            // Shutting down closes it, rather than leaving its thread waiting for another request
+            server.shutdown();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                ; // The rest of the response
+            }
+            assertEquals(-1, read);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            final List<String> ret = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ret.add(line);
+            }
+            return ret;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContext;
+
+public class UploadPolicyTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConnected = true;
+        mWifi = false;
+        mCharging = false;
+        mReads = 0;
+        mChanges = 0;
+        mContext = new MockContext() {
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter, String broadcastPermission, Handler scheduler) {
+                mReceiver = receiver;
+                return null;
+            }
+
+            @Override
+            public void unregisterReceiver(BroadcastReceiver receiver) {
+                mReceiver = null;
+            }
+        };
+    }
+
+    public void testMeteredBacklog() {
+        final UploadPolicy policy = makePolicy(100);
+
+        // Small backlogs go right away on cellular, big ones wait for Wi-Fi or a charger
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(100, false));
+        assertEquals(UploadPolicy.WAIT_FOR_WIFI_OR_CHARGING, policy.check(101, false));
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(101, true));
+
+        mWifi = true;
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(5000, false));
+        mWifi = false;
+        mCharging = true;
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(5000, false));
+
+        // Can't tell, so don't wait
+        mCharging = null;
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(5000, false));
+
+        // Nothing goes without a connection
+        mConnected = false;
+        assertEquals(UploadPolicy.WAIT_FOR_CONNECTION, policy.check(1, true));
+
+        // And by default, a backlog never waits for Wi-Fi
+        mConnected = true;
+        mCharging = false;
+        assertEquals(UploadPolicy.UPLOAD_NOW, makePolicy(-1).check(5000, false));
+    }
+
+    public void testBroadcastsUpdateState() {
+        final UploadPolicy policy = makePolicy(100);
+        policy.start();
+        assertNotNull(mReceiver);
+
+        // Read once, then kept until a broadcast says otherwise
+        assertEquals(UploadPolicy.WAIT_FOR_WIFI_OR_CHARGING, policy.check(1000, false));
+        final int reads = mReads;
+        mWifi = true;
+        assertEquals(UploadPolicy.WAIT_FOR_WIFI_OR_CHARGING, policy.check(1000, false));
+        assertEquals(reads, mReads);
+
+        // A flush was put off, so a change asks for it to be tried again
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertEquals(1, mChanges);
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(1000, false));
+
+        // Nothing was put off this time
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertEquals(1, mChanges);
+
+        // Power changes are taken from the broadcast itself
+        mWifi = false;
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertEquals(UploadPolicy.WAIT_FOR_WIFI_OR_CHARGING, policy.check(1000, false));
+        mReceiver.onReceive(mContext, new Intent(Intent.ACTION_POWER_CONNECTED));
+        assertEquals(2, mChanges);
+        assertEquals(UploadPolicy.UPLOAD_NOW, policy.check(1000, false));
+        mReceiver.onReceive(mContext, new Intent(Intent.ACTION_POWER_DISCONNECTED));
+        assertEquals(UploadPolicy.WAIT_FOR_WIFI_OR_CHARGING, policy.check(1000, false));
+
+        policy.stop();
+        assertNull(mReceiver);
+    }
+
+    private UploadPolicy makePolicy(int meteredBacklogLimit) {
+        return new UploadPolicy(mContext, null, null, meteredBacklogLimit, new Runnable() {
+            @Override
+            public void run() {
+                mChanges++;
+            }
+        }) {
+            @Override
+            boolean readConnected() {
+                mReads++;
+                return mConnected;
+            }
+
+            @Override
+            Boolean readWifi() {
+                mReads++;
+                return mWifi;
+            }
+
+            @Override
+            Boolean readCharging() {
+                mReads++;
+                return mCharging;
+            }
+        };
+    }
+
+    private Context mContext;
+    private BroadcastReceiver mReceiver;
+    private boolean mConnected;
+    private Boolean mWifi;
+    private Boolean mCharging;
+    private int mReads;
+    private int mChanges;
+}
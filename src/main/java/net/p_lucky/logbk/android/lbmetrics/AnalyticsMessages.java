@@ -1,28 +1,29 @@
 package net.p_lucky.logbk.android.lbmetrics;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import net.p_lucky.logbk.android.util.Base64Coder;
-
-import org.apache.http.NameValuePair;
-import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.util.DisplayMetrics;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -31,6 +32,10 @@ import android.util.Log;
  *
  * <p>This class straddles the thread boundary between user threads and
  * a logical Logbook thread.
+ *
+ * <p>The Logbook worker thread owns the events DB: it stores new events, and reads and
+ * deletes the batches that are sent. Uploads run on separate upload threads, and the
+ * worker never waits for them, so a slow or hung connection can't hold up storing events.
  */
 /* package */ class AnalyticsMessages {
 
@@ -40,6 +45,8 @@ import android.util.Log;
     /* package */ AnalyticsMessages(final Context context) {
         mContext = context;
         mConfig = getConfig(context);
+        mEventQueue = new MpscRingBuffer<EventBuilder>(EVENT_QUEUE_CAPACITY);
+        mDrainScheduled = new AtomicBoolean(false);
         mWorker = new Worker();
     }
 
@@ -65,20 +72,46 @@ import android.util.Log;
         }
     }
 
-    public void eventsMessage(final EventDescription eventDescription) {
-        final Message m = Message.obtain();
-        m.what = ENQUEUE_EVENTS;
-        m.obj = eventDescription;
-        mWorker.runMessage(m);
+    public void eventsMessage(final EventBuilder event) {
+        if (! mEventQueue.offer(event)) {
+            // The worker is far behind (or dead). Hand this event over the slow,
+            // locked path rather than losing it.
+            final Message m = Message.obtain();
+            m.what = ENQUEUE_EVENTS;
+            m.obj = event;
+            mWorker.runMessage(m);
+            return;
+        }
+
+        // Only the first producer after a drain has to wake the worker, everyone
+        // else just leaves their event in the ring buffer.
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            final Message m = Message.obtain();
+            m.what = ENQUEUE_EVENTS;
+            mWorker.runMessage(m);
+        }
     }
 
     public void postToServer() {
         final Message m = Message.obtain();
         m.what = FLUSH_QUEUE;
+        m.arg1 = PRIORITY_HIGH; // The app asked for it
 
         mWorker.runMessage(m);
     }
 
+    // Like postToServer(), for LogbookJobService. onDone is run on the worker thread
+    // once the flush is over, whether or not anything was sent. Returns false, and
+    // onDone is never run, if the worker is dead.
+    /* package */ boolean postToServerFromJob(Runnable onDone) {
+        final Message m = Message.obtain();
+        m.what = FLUSH_QUEUE;
+        m.arg1 = PRIORITY_NORMAL;
+        m.obj = onDone;
+
+        return mWorker.runMessage(m);
+    }
+
     public void hardKill() {
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
@@ -101,30 +134,31 @@ import android.util.Log;
         return LBConfig.getInstance(context);
     }
 
-    protected ServerMessage getPoster() {
-        return new ServerMessage();
-    }
-
-    ////////////////////////////////////////////////////
-
-    static class EventDescription {
-        public EventDescription(String eventName, JSONObject properties) {
-            this.eventName = eventName;
-            this.properties = properties;
-        }
-
-        public String getEventName() {
-            return eventName;
-        }
-
-        public JSONObject getProperties() {
-            return properties;
+    // Returns null if the configured transport can't be made right now
+    protected Transport getPoster() {
+        final String transport = mConfig.getTransport();
+        if (LBConfig.TRANSPORT_FILE.equals(transport)) {
+            return new FileTransport(new File(mContext.getFilesDir(), mConfig.getTransportFile()));
+        } else if (LBConfig.TRANSPORT_LOOPBACK.equals(transport)) {
+            try {
+                return new LoopbackTransport(mConfig.getLoopbackLatency(), mConfig.getLoopbackErrorPercent() / 100.0);
+            } catch (final IOException e) {
+                // Not worth sending test traffic to the real endpoints over
+                Log.e(LOGTAG, "Could not start the loopback server", e);
+                return null;
+            }
         }
+        return new ServerMessage(mConfig.getMinRequestTimeout(), mConfig.getMaxRequestTimeout());
+    }
 
-        private final String eventName;
-        private final JSONObject properties;
+    protected RetryPolicy makeRetryPolicy(Context context, LBConfig config) {
+        final SharedPreferences preferences = context.getSharedPreferences(RetryPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return new RetryPolicy(preferences, config.getRetryBaseDelay(), config.getRetryMaxDelay(),
+                config.getCircuitBreakerThreshold(), config.getCircuitBreakerCooldown());
     }
 
+    ////////////////////////////////////////////////////
+
     // Sends a message if and only if we are running with Logbook Message log enabled.
     // Will be called from the Logbook thread.
     private void logAboutMessageToLogbook(String message) {
@@ -147,13 +181,15 @@ import android.util.Log;
             }
         }
 
-        public void runMessage(Message msg) {
+        // Returns false if msg was dropped, because the worker is dead
+        public boolean runMessage(Message msg) {
             synchronized(mHandlerLock) {
                 if (mHandler == null) {
                     // We died under suspicious circumstances. Don't try to send any more events.
                     logAboutMessageToLogbook("Dead Logbook worker dropping a message: " + msg.what);
+                    return false;
                 } else {
-                    mHandler.sendMessage(msg);
+                    return mHandler.sendMessage(msg);
                 }
             }
         }
@@ -173,33 +209,87 @@ import android.util.Log;
                 mDbAdapter = null;
                 mFlushInterval = mConfig.getFlushInterval();
                 mSystemInformation = new SystemInformation(mContext);
+                mSuperProperties = new SuperPropertiesCache(mContext, mSystemInformation, this, SUPER_PROPERTIES_TTL);
+                mSuperProperties.start();
+                mUploadPolicy = new UploadPolicy(mContext, mSystemInformation, this, mConfig.getMeteredBacklogLimit(), new Runnable() {
+                    @Override
+                    public void run() {
+                        // A flush was put off, and things have changed since
+                        if (!hasMessages(FLUSH_QUEUE)) {
+                            sendMessage(obtainMessage(FLUSH_QUEUE, mWaitingFlushPriority, 0));
+                        }
+                    }
+                });
+                mUploadPolicy.start();
             }
 
             @Override
             public void handleMessage(Message msg) {
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), LBDbAdapter.Table.EVENTS);
+                    mDbAdapter.setSynchronousMode(mConfig.getDatabaseSynchronous());
+                    final long expired = System.currentTimeMillis() - mConfig.getDataExpiration();
+                    mDbAdapter.cleanupEvents(expired, LBDbAdapter.Table.EVENTS);
+                    mDbAdapter.cleanupQuarantine(expired);
+
+                    // Batches that may have reached the server before the process last died are
+                    // sent again just as they were, with the same keys, so the server can drop
+                    // any it already has. New batches are read from after them.
+                    for (final long[] range : mDbAdapter.readSentBatches()) {
+                        addRetryRange(range[0], range[1]);
+                        mReadThroughId = Math.max(mReadThroughId, range[1]);
+                    }
+                }
+                if (mRetryPolicy == null) {
+                    mRetryPolicy = makeRetryPolicy(mContext, mConfig);
                 }
 
                 try {
                     int queueDepth = -1;
 
                     if (msg.what == ENQUEUE_EVENTS) {
-                        final EventDescription eventDescription = (EventDescription) msg.obj;
-                        try {
-                            final JSONObject message = prepareEventObject(eventDescription);
-                            logAboutMessageToLogbook("Queuing event for sending later");
-                            logAboutMessageToLogbook("    " + message.toString());
-                            queueDepth = mDbAdapter.addJSON(message, LBDbAdapter.Table.EVENTS);
-                        } catch (final JSONException e) {
-                            Log.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                        // Clear the flag before draining, so producers that miss this
+                        // drain are guaranteed to schedule another one.
+                        mDrainScheduled.set(false);
+
+                        EventBuilder event;
+                        while ((event = mEventQueue.poll()) != null) {
+                            prepareForStorage(event);
+                        }
+                        if (null != msg.obj) {
+                            prepareForStorage((EventBuilder) msg.obj);
+                        }
+
+                        if (! mPendingEvents.isEmpty()) {
+                            logAboutMessageToLogbook("Queuing " + mPendingEvents.size() + " events for sending later");
+                            queueDepth = mDbAdapter.addJSONBatch(mPendingEvents, LBDbAdapter.Table.EVENTS);
+                            mPendingEvents.clear();
                         }
                     }
                     else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToLogbook("Flushing queue due to scheduled or forced flush");
+                        if (msg.obj instanceof Runnable) {
+                            // From the flush job, which has run now
+                            mFlushJobScheduled = false;
+                            mFlushDoneCallbacks.add((Runnable) msg.obj);
+                        }
                         updateFlushFrequency();
-                        sendAllData(mDbAdapter);
+                        sendAllData(mDbAdapter, msg.arg1 == PRIORITY_HIGH);
+                        if (null == mFlush) {
+                            runFlushDoneCallbacks(); // Nothing to wait for
+                        }
+                    } else if (msg.what == UPLOAD_DONE) {
+                        if (msg.obj instanceof Throwable) {
+                            throw new RuntimeException("Upload threw an unhandled exception", (Throwable) msg.obj);
+                        }
+                        onUploadDone(mDbAdapter, (BatchUpload) msg.obj);
+                    } else if (msg.what == KILL_WORKER) {
+                        Log.w(LOGTAG, "Worker received a hard kill, closing the events DB and stopping. Thread id " + Thread.currentThread().getId());
+                        synchronized (mHandlerLock) {
+                            stopWorker();
+                            mDbAdapter.close();
+                            Looper.myLooper().quit();
+                        }
                     } else {
                         Log.e(LOGTAG, "Unexpected message received by Logbook worker: " + msg);
                     }
@@ -209,8 +299,8 @@ import android.util.Log;
                     if (queueDepth >= mConfig.getBulkUploadLimit()) {
                         logAboutMessageToLogbook("Flushing queue due to bulk upload limit");
                         updateFlushFrequency();
-                        sendAllData(mDbAdapter);
-                    } else if (queueDepth > 0 && !hasMessages(FLUSH_QUEUE)) {
+                        sendAllData(mDbAdapter, false);
+                    } else if (queueDepth > 0 && !hasMessages(FLUSH_QUEUE) && !mFlushJobScheduled) {
                         // The !hasMessages(FLUSH_QUEUE) check is a courtesy for the common case
                         // of delayed flushes already enqueued from inside of this thread.
                         // Callers outside of this thread can still send
@@ -219,13 +309,13 @@ import android.util.Log;
 
                         logAboutMessageToLogbook("Queue depth " + queueDepth + " - Adding flush in " + mFlushInterval);
                         if (mFlushInterval >= 0) {
-                            sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
+                            scheduleFlush(mFlushInterval);
                         }
                     }
                 } catch (final RuntimeException e) {
                     Log.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
-                        mHandler = null;
+                        stopWorker();
                         try {
                             Looper.myLooper().quit();
                             Log.e(LOGTAG, "Logbook will not process any more analytics messages", e);
@@ -237,146 +327,514 @@ import android.util.Log;
             }// handleMessage
 
 
-            private void sendAllData(LBDbAdapter dbAdapter) {
-                final ServerMessage poster = getPoster();
-                if (! poster.isOnline(mContext)) {
-                    logAboutMessageToLogbook("Not flushing data to Logbook because the device is not connected to the internet.");
+            // Adds the JSON form of event to mPendingEvents, and recycles the event
+            private void prepareForStorage(EventBuilder event) {
+                try {
+                    final JSONObject message = prepareEventObject(event);
+                    logAboutMessageToLogbook("    " + message.toString());
+                    mPendingEvents.add(message);
+                } catch (final JSONException e) {
+                    Log.e(LOGTAG, "Exception tracking event " + event.getEventName(), e);
+                } finally {
+                    event.recycle();
+                }
+            }
+
+            // highPriority flushes are sent even when the upload policy would have them wait for Wi-Fi
+            private void sendAllData(LBDbAdapter dbAdapter, boolean highPriority) {
+                if (null != mFlush) {
+                    // A flush that's still going picks up new events as it goes. One that has
+                    // stopped early only has uploads left to finish, so go again after it.
+                    if (mFlush.stopped) {
+                        logAboutMessageToLogbook("Flushing again once the uploads in flight are done");
+                        mFlush.flushAgain = true;
+                        mFlush.flushAgainHighPriority |= highPriority;
+                    }
+                    return;
+                }
+
+                if (null == mPoster) {
+                    // Kept for the life of the worker, since it remembers which endpoints accept compression
+                    mPoster = getPoster();
+                    if (null == mPoster) {
+                        return; // Try again next flush
+                    }
+                    mPoster.setRequestCompression(mConfig.getRequestCompression());
+                    mEndpointHealth = new EndpointHealth(mConfig.getEndpointCooldown(), mPoster.getRoundTrips());
+                }
+                if (mPoster.usesNetwork()) {
+                    final int queueDepth = dbAdapter.getQueueDepth(LBDbAdapter.Table.EVENTS);
+                    final int conditions = mUploadPolicy.check(queueDepth, highPriority);
+                    if (conditions != UploadPolicy.UPLOAD_NOW) {
+                        if (conditions == UploadPolicy.WAIT_FOR_CONNECTION) {
+                            logAboutMessageToLogbook("Not flushing data to Logbook because the device is not connected to the internet.");
+                        } else {
+                            logAboutMessageToLogbook("Not flushing " + queueDepth + " events to Logbook until the device is on Wi-Fi or charging.");
+                        }
+                        mWaitingFlushPriority = highPriority ? PRIORITY_HIGH : PRIORITY_NORMAL;
+                        return;
+                    }
+                }
+
+                final long retryDelay = mRetryPolicy.getDelayUntilNextAttempt(System.currentTimeMillis());
+                if (retryDelay > 0) {
+                    logAboutMessageToLogbook("Not flushing data to Logbook for another " + retryDelay + " ms, after " +
+                            mRetryPolicy.getConsecutiveFailures() + " failed attempts" + (mRetryPolicy.isCircuitOpen() ? " (circuit open)" : ""));
+                    sendTimerFlush(retryDelay, highPriority ? PRIORITY_HIGH : PRIORITY_NORMAL, false);
                     return;
                 }
 
                 logAboutMessageToLogbook("Sending records to Logbook");
-                sendData(dbAdapter, LBDbAdapter.Table.EVENTS, new String[]{ mConfig.getEventsEndpoint() });
+                // Events refused last flush get another go, in order with the rest
+                for (final long[] range : mRefusedRanges) {
+                    addRetryRange(range[0], range[1]);
+                }
+                mRefusedRanges.clear();
+                if (mRetryRanges.isEmpty()) {
+                    // Every batch we've read has been dealt with, so start again from the oldest event
+                    mReadThroughId = -1;
+                }
+                mFlush = new Flush(dbAdapter.getIdempotencyKeyPrefix());
+                getUploadExecutor(mFlush.concurrency);
+                continueFlush(dbAdapter);
             }
 
-            private void sendData(LBDbAdapter dbAdapter, LBDbAdapter.Table table, String[] urls) {
-                final ServerMessage poster = getPoster();
-                final String[] eventsData = dbAdapter.generateDataString(table);
+            // Keeps sending until the queue is empty, so a backlog built up while we were
+            // offline goes out in one flush instead of one batch per flush interval.
+            // Up to UploadConcurrency batches are on their way at once. Their responses can
+            // come back in any order, so each batch only ever deletes its own rows.
+            // While they're on the wire, up to UploadPrefetchDepth more batches are read
+            // and encoded, so they're ready to go as soon as there's room for them.
+            // This never waits for an upload: each one comes back as an UPLOAD_DONE
+            // message, and the flush carries on from there.
+            private void continueFlush(LBDbAdapter dbAdapter) {
+                final LBDbAdapter.Table table = LBDbAdapter.Table.EVENTS;
+                final Flush flush = mFlush;
+                while (! flush.stopped && flush.inFlight < flush.concurrency) {
+                    BatchUpload upload = flush.prefetched.poll();
+                    if (null == upload) {
+                        upload = readUpload(dbAdapter, table);
+                        if (null == upload) {
+                            break;
+                        }
+                        flush.prepare(upload);
+                    }
+                    flush.rowsInFlight += upload.getBatch().size();
+
+                    // Keep the connection open for the next batch, if there is one
+                    upload.setKeepAlive(dbAdapter.getQueueDepth(table) > flush.rowsInFlight);
+                    final EventBatch batch = upload.getBatch();
+                    dbAdapter.recordSentBatch(batch.getRowId(0), batch.getRowId(batch.size() - 1));
+                    startUpload(upload);
+                    flush.inFlight++;
+                }
+                if (flush.inFlight == 0) {
+                    finishFlush(dbAdapter); // Nothing left to send, or stopped and everything sent has been dealt with
+                    return;
+                }
 
-                if (eventsData != null) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                while (! flush.stopped && flush.prefetched.size() < flush.prefetchDepth) {
+                    final BatchUpload upload = readUpload(dbAdapter, table);
+                    if (null == upload) {
+                        break;
+                    }
+                    flush.prepare(upload);
+                    flush.prefetched.add(upload);
+                }
+            }
 
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
-                    final List<NameValuePair> params = new ArrayList<NameValuePair>(1);
-                    params.add(new BasicNameValuePair("code", LogbookAPI.getToken()));
-                    params.add(new BasicNameValuePair("data", encodedData));
-                    if (LBConfig.DEBUG) {
-                        params.add(new BasicNameValuePair("verbose", "1"));
+            // Called with each upload that comes back from an upload thread
+            private void onUploadDone(LBDbAdapter dbAdapter, BatchUpload upload) {
+                final LBDbAdapter.Table table = LBDbAdapter.Table.EVENTS;
+                final Flush flush = mFlush;
+                final EventBatch batch = upload.getBatch();
+                final long firstId = batch.getRowId(0);
+                final long lastId = batch.getRowId(batch.size() - 1);
+                flush.inFlight--;
+                flush.rowsInFlight -= batch.size();
+                flush.bytesSent += handleUpload(dbAdapter, table, upload);
+                if (upload.getResult() != BatchUpload.RESULT_FAILED) {
+                    // The server answered, so there's no duplicate to worry about if this batch's rows are sent again
+                    dbAdapter.clearSentBatches(firstId, lastId);
+                }
+                flush.batchCount++;
+                mIdleUploads.add(upload);
+
+                final long elapsed = SystemClock.elapsedRealtime() - flush.startTime;
+                if (! flush.stopped && (flush.bytesSent >= mConfig.getFlushByteBudget() || elapsed >= mConfig.getFlushTimeBudget())) {
+                    flush.stopped = true;
+                    if (dbAdapter.getQueueDepth(table) > flush.rowsInFlight) {
+                        logAboutMessageToLogbook("Flush budget used up after " + flush.batchCount + " batches (" +
+                                flush.bytesSent + " bytes in " + elapsed + " ms), sending the rest in " + mFlushInterval);
+                        if (mFlushInterval >= 0) {
+                            scheduleFlush(mFlushInterval);
+                        }
                     }
+                }
+
+                continueFlush(dbAdapter);
+            }
 
-                    boolean deleteEvents = true;
-                    byte[] response;
-                    for (String url : urls) {
+            private void finishFlush(LBDbAdapter dbAdapter) {
+                // Batches read ahead but never sent are read again, just as they were, next time
+                for (final BatchUpload upload : mFlush.prefetched) {
+                    final EventBatch batch = upload.getBatch();
+                    addRetryRange(batch.getRowId(0), batch.getRowId(batch.size() - 1));
+                    mIdleUploads.add(upload);
+                }
+
+                final boolean flushAgain = mFlush.flushAgain;
+                final boolean highPriority = mFlush.flushAgainHighPriority;
+                mFlush = null;
+                if (flushAgain) {
+                    sendAllData(dbAdapter, highPriority);
+                }
+                if (null == mFlush) {
+                    if (! mRefusedRanges.isEmpty() && mFlushInterval >= 0) {
+                        scheduleFlush(mFlushInterval);
+                    }
+                    runFlushDoneCallbacks();
+                }
+            }
+
+            // Reads the next batch to send into an idle BatchUpload: the oldest batch waiting to be
+            // sent again, or else the oldest events not read yet. Returns null if there's nothing to send.
+            private BatchUpload readUpload(LBDbAdapter dbAdapter, LBDbAdapter.Table table) {
+                final BatchUpload upload = mIdleUploads.isEmpty() ?
+                        new BatchUpload(mPoster, mEndpointHealth) : mIdleUploads.remove(mIdleUploads.size() - 1);
+                final EventBatch batch = upload.getBatch();
+
+                // Read back exactly as they were sent, so they get the same idempotency key
+                while (! mRetryRanges.isEmpty()) {
+                    final long[] range = mRetryRanges.removeFirst();
+                    if (dbAdapter.readBatch(table, batch, Integer.MAX_VALUE, Integer.MAX_VALUE, range[0] - 1, range[1])) {
+                        return upload;
+                    }
+                    // Those events have expired since, or couldn't be read
+                    dbAdapter.clearSentBatches(range[0], range[1]);
+                }
+
+                while (dbAdapter.readBatch(table, batch, mConfig.getMaxBatchBytes(), Integer.MAX_VALUE, mReadThroughId, Long.MAX_VALUE) ||
+                        batch.getLastId() != -1) {
+                    mReadThroughId = batch.getLastId();
+                    if (! batch.isEmpty()) {
+                        return upload;
+                    }
+                    // Only unreadable rows, which are gone now. Try the ones after them.
+                }
+
+                mIdleUploads.add(upload);
+                return null;
+            }
+
+            // Hands upload to an upload thread, which hands it back to this thread, sent or not,
+            // in an UPLOAD_DONE message. Nothing else passes between the two: the upload
+            // threads never touch the DB, and this thread never waits on the network.
+            private void startUpload(final BatchUpload upload) {
+                mUploadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Object result;
                         try {
-                            response = poster.performRequest(url, params);
-                            deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            if (null == response) {
-                                if (LBConfig.DEBUG) {
-                                    Log.d(LOGTAG, "Response was null, unexpected failure posting to " + url + ".");
-                                }
-                            } else {
-                                String parsedResponse;
-                                try {
-                                    parsedResponse = new String(response, "UTF-8");
-                                } catch (UnsupportedEncodingException e) {
-                                    throw new RuntimeException("UTF not supported on this platform?", e);
-                                }
-
-                                logAboutMessageToLogbook("Successfully posted to " + url + ": \n" + rawMessage);
-                                logAboutMessageToLogbook("Response was " + parsedResponse);
-                            }
-                            break;
-                        } catch (final OutOfMemoryError e) {
-                            Log.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                            break;
-                        } catch (final MalformedURLException e) {
-                            Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                            break;
-                        } catch (final IOException e) {
-                            if (LBConfig.DEBUG)
-                                Log.d(LOGTAG, "Cannot post message to " + url + ".", e);
-                            deleteEvents = false;
+                            result = upload.call();
+                        } catch (final Throwable e) {
+                            // Uploads only throw for bugs, which should stop the worker just
+                            // as if it had sent them itself
+                            result = e;
                         }
+                        obtainMessage(UPLOAD_DONE, result).sendToTarget();
                     }
+                });
+            }
 
-                    if (deleteEvents) {
-                        logAboutMessageToLogbook("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table);
-                    } else {
-                        logAboutMessageToLogbook("Retrying this batch of events.");
-                        if (!hasMessages(FLUSH_QUEUE)) {
-                            sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
-                        }
+            private ExecutorService getUploadExecutor(int concurrency) {
+                if (null == mUploadExecutor || mUploadConcurrency != concurrency) {
+                    if (null != mUploadExecutor) {
+                        mUploadExecutor.shutdown();
                     }
+                    mUploadExecutor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread ret = new Thread(r, "net.p_lucky.logbk.android.AnalyticsUploader");
+                            ret.setPriority(Thread.MIN_PRIORITY);
+                            ret.setDaemon(true);
+                            return ret;
+                        }
+                    });
+                    mUploadConcurrency = concurrency;
                 }
+                return mUploadExecutor;
             }
 
-            private JSONObject getDefaultEventProperties()
-                    throws JSONException {
-                final JSONObject ret = new JSONObject();
+            // Deals with a finished upload. Returns the number of bytes sent that count against
+            // the flush budget, and stops the flush if no more batches should be sent this flush.
+            private int handleUpload(LBDbAdapter dbAdapter, LBDbAdapter.Table table, BatchUpload upload) {
+                final EventBatch batch = upload.getBatch();
+                final int sent = batch.getPayload().length();
+
+                switch (upload.getResult()) {
+                    case BatchUpload.RESULT_SENT:
+                        mRetryPolicy.recordSuccess();
+
+                        // Servers that can take part of a batch say which events they took
+                        final String response = upload.getResponse();
+                        final BatchResponse batchResponse = null == response ? null : BatchResponse.parse(response, batch.size());
+                        if (null != batchResponse && batchResponse.getAcknowledgedCount() < batch.size()) {
+                            if (batchResponse.getAcknowledgedCount() == 0) {
+                                // Nothing was taken, so back off just as if the request had failed
+                                retryLater(batch);
+                                return 0;
+                            }
+                            handlePartialAcknowledgement(dbAdapter, table, batch, batchResponse);
+                            return sent;
+                        }
+                        deleteBatch(dbAdapter, table, batch);
+                        return sent;
+                    case BatchUpload.RESULT_UNSENDABLE:
+                        logAboutMessageToLogbook("Not retrying this batch of events, deleting them from DB.");
+                        deleteBatch(dbAdapter, table, batch);
+                        return sent;
+                    case BatchUpload.RESULT_REFUSED:
+                        return handleRefusedBatch(dbAdapter, table, batch);
+                    default:
+                        retryLater(batch);
+                        return 0;
+                }
+            }
 
-                ret.put("libName", "logbk-android");
-                ret.put("libVersion", LBConfig.VERSION);
+            private void deleteBatch(LBDbAdapter dbAdapter, LBDbAdapter.Table table, EventBatch batch) {
+                dbAdapter.cleanupEvents(batch.getRowIds(), batch.size(), table);
+            }
 
-                // For querying together with data from other libraries
-                ret.put("os", "Android");
-                ret.put("osVersion", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+            // Puts batch back to be sent again when the retry policy says so, and stops the flush.
+            // Only the first failure in a flush counts, since the uploads in flight with it
+            // most likely failed for the same reason.
+            private void retryLater(EventBatch batch) {
+                addRetryRange(batch.getRowId(0), batch.getRowId(batch.size() - 1));
+                mFlush.stopped = true;
+                if (! mFlush.failed) {
+                    mFlush.failed = true;
+                    final long retryDelay = mRetryPolicy.recordFailure(System.currentTimeMillis());
+                    logAboutMessageToLogbook("Retrying this batch of events in " + retryDelay + " ms.");
+                    // Replaces any timer flush, which would only be put off until then anyway. Flushes
+                    // from the app or the flush job are left alone, their callers are waiting on them.
+                    sendTimerFlush(retryDelay, PRIORITY_NORMAL, true);
+                }
+            }
 
-                ret.put("manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
-                ret.put("brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
-                ret.put("model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+            private void handlePartialAcknowledgement(LBDbAdapter dbAdapter, LBDbAdapter.Table table,
+                                                      EventBatch batch, BatchResponse batchResponse) {
+                final int acknowledged = batchResponse.getAcknowledgedCount();
+                final long[] ids = new long[acknowledged];
+                int idCount = 0;
+                long firstKept = -1;
+                long lastKept = -1;
+                for (int i = 0; i < batchResponse.size(); i++) {
+                    if (batchResponse.isAcknowledged(i)) {
+                        ids[idCount++] = batch.getRowId(i);
+                    } else {
+                        if (firstKept == -1) {
+                            firstKept = batch.getRowId(i);
+                        }
+                        lastKept = batch.getRowId(i);
+                    }
+                }
+                dbAdapter.cleanupEvents(ids, idCount, table);
+                if (batchResponse.getRejectedCount() > 0) {
+                    Log.w(LOGTAG, "Logbook rejected " + batchResponse.getRejectedCount() + " events, deleting them from DB.");
+                }
 
-                final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
-                ret.put("screenDpi", displayMetrics.densityDpi);
-                ret.put("screenHeight", displayMetrics.heightPixels);
-                ret.put("screenWidth", displayMetrics.widthPixels);
+                // Send the rest with the next flush rather than right away, in case
+                // the server is asking us to slow down
+                addRetryRange(firstKept, lastKept);
+                logAboutMessageToLogbook("Deleted " + acknowledged + " acknowledged events, retrying the other " +
+                        (batch.size() - acknowledged) + " in " + mFlushInterval + " ms.");
+                mFlush.stopped = true;
+                if (mFlushInterval >= 0) {
+                    scheduleFlush(mFlushInterval);
+                }
+            }
 
-                final String applicationVersionName = mSystemInformation.getAppVersionName();
-                if (null != applicationVersionName)
-                    ret.put("appVersion", applicationVersionName);
+            // Called when the server refuses batch because of what's in it. Without this, a single
+            // bad event would block everything behind it in the queue until it expired. We split
+            // the batch in half until the bad events are found on their own, and then retry each
+            // one until it has been refused MaxEventAttempts times, when it is quarantined.
+            // Only refusals of an event on its own are counted, once per flush at most, so a
+            // server that refuses everything can't quickly empty the queue into the quarantine.
+            // The server did answer, so these don't count against the retry policy, and the
+            // flush carries on with the events after them. Returns as handleUpload does.
+            private int handleRefusedBatch(LBDbAdapter dbAdapter, LBDbAdapter.Table table, EventBatch batch) {
+                final int size = batch.size();
+                final long[] ids = batch.getRowIds();
+                if (size > 1) {
+                    final int half = size / 2;
+                    addRetryRange(ids[0], ids[half - 1]);
+                    addRetryRange(ids[half], ids[size - 1]);
+                    logAboutMessageToLogbook("Logbook refused a batch of " + size + " events, sending each half " +
+                            "on its own to find the bad ones.");
+                    return batch.getPayload().length(); // Keep going with the halves
+                }
 
-                final Boolean hasNFC = mSystemInformation.hasNFC();
-                if (null != hasNFC)
-                    ret.put("hasNfc", hasNFC.booleanValue());
+                final int attempts = batch.getRowAttempts(0) + 1;
+                if (attempts >= mConfig.getMaxEventAttempts()) {
+                    Log.w(LOGTAG, "Logbook refused event " + ids[0] + " " + attempts + " times, moving it to quarantine.");
+                    dbAdapter.quarantineEvents(ids, 1, table);
+                    return batch.getPayload().length();
+                }
 
-                final Boolean hasTelephony = mSystemInformation.hasTelephony();
-                if (null != hasTelephony)
-                    ret.put("hasTelephone", hasTelephony.booleanValue());
+                dbAdapter.recordAttempts(ids, 1, table);
+                logAboutMessageToLogbook("Logbook refused event " + ids[0] + " " + attempts + " times, trying it again next flush.");
+                mRefusedRanges.add(new long[] { ids[0], ids[0] });
+                return batch.getPayload().length();
+            }
 
-                final String carrier = mSystemInformation.getCurrentNetworkOperator();
-                if (null != carrier)
-                    ret.put("carrier", carrier);
+            // Adds the rows with ids in [firstId, lastId] to be sent again, keeping the oldest first
+            private void addRetryRange(long firstId, long lastId) {
+                final long[] range = { firstId, lastId };
+                final ListIterator<long[]> it = mRetryRanges.listIterator();
+                while (it.hasNext()) {
+                    if (it.next()[0] > firstId) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(range);
+            }
+
+            // Flushes in about delay milliseconds. Where the platform job scheduler is
+            // available and turned on, the flush is left to it, so it can go out along
+            // with other apps' traffic within the next FlushJobWindow milliseconds.
+            // Retries after failures don't come through here, since they have to keep
+            // to the times the retry policy picked.
+            private void scheduleFlush(long delay) {
+                if (mConfig.getUseJobScheduler() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    if (! mFlushJobScheduled) {
+                        mFlushJobScheduled = LogbookJobService.schedule(mContext, delay, delay + mConfig.getFlushJobWindow());
+                    }
+                    if (mFlushJobScheduled) {
+                        return;
+                    }
+                }
+                sendTimerFlush(delay, PRIORITY_NORMAL, false);
+            }
 
-                final Boolean isWifi = mSystemInformation.isWifiConnected();
-                if (null != isWifi)
-                    ret.put("wifi", isWifi.booleanValue());
+            // Flushes after delay, unless a timer flush is already waiting, in which case that one is
+            // kept. It's moved to the new time instead if replace is set or priority is higher,
+            // and goes at the higher of the two priorities.
+            private void sendTimerFlush(long delay, int priority, boolean replace) {
+                if (hasMessages(FLUSH_QUEUE, TIMER_FLUSH)) {
+                    if (! replace && priority <= mTimerFlushPriority) {
+                        return;
+                    }
+                    priority = Math.max(priority, mTimerFlushPriority);
+                    removeMessages(FLUSH_QUEUE, TIMER_FLUSH);
+                }
+                mTimerFlushPriority = priority;
+                sendMessageDelayed(obtainMessage(FLUSH_QUEUE, priority, 0, TIMER_FLUSH), delay);
+            }
 
-                final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
-                if (isBluetoothEnabled != null)
-                    ret.put("bluetoothEnabled", isBluetoothEnabled);
+            private void runFlushDoneCallbacks() {
+                for (final Runnable callback : mFlushDoneCallbacks) {
+                    callback.run();
+                }
+                mFlushDoneCallbacks.clear();
+            }
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("bluetoothVersion", bluetoothVersion);
+            // Lets go of everything the worker holds but the DB, and marks it dead, whether
+            // it was killed or crashed. Must be called holding mHandlerLock.
+            private void stopWorker() {
+                mHandler = null;
+                mSuperProperties.stop();
+                mUploadPolicy.stop();
+                stopUploads();
+                closePoster();
+                runFlushDoneCallbacks();
+            }
 
-                return ret;
+            private void stopUploads() {
+                if (null != mUploadExecutor) {
+                    mUploadExecutor.shutdown();
+                    mUploadExecutor = null;
+                }
             }
 
-            private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
-                final JSONObject eventObj = getDefaultEventProperties();
-                final JSONObject eventProperties = eventDescription.getProperties();
-                if (eventProperties != null) {
-                    for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
-                        final String key = (String) iter.next();
-                        eventObj.put(key, eventProperties.get(key));
+            // Uploads still running when the worker stops just fail, and are sent again by the next worker
+            private void closePoster() {
+                if (null != mPoster) {
+                    try {
+                        mPoster.close();
+                    } catch (final IOException e) {
+                        Log.w(LOGTAG, "Could not close the transport", e);
                     }
+                    mPoster = null;
                 }
-                eventObj.put("event", eventDescription.getEventName());
+            }
+
+            private JSONObject prepareEventObject(EventBuilder event) throws JSONException {
+                final JSONObject eventObj = mSuperProperties.newEventObject();
+                event.writeTo(eventObj);
+                eventObj.put("event", event.getEventName());
                 return eventObj;
             }
 
             private LBDbAdapter mDbAdapter;
+            private Transport mPoster;
+            private RetryPolicy mRetryPolicy;
+            private final UploadPolicy mUploadPolicy;
+            private EndpointHealth mEndpointHealth; // Goes with mPoster, whose round trips it ranks endpoints by
+            private int mWaitingFlushPriority; // Of the last flush the upload policy put off
+            private int mTimerFlushPriority; // Of the last timer flush sent
+            private boolean mFlushJobScheduled; // A flush is left to LogbookJobService
+            private final List<Runnable> mFlushDoneCallbacks = new ArrayList<Runnable>(); // To run when the flush is over
+            private final SuperPropertiesCache mSuperProperties;
+            private final List<JSONObject> mPendingEvents = new ArrayList<JSONObject>();
+            private ExecutorService mUploadExecutor;
+            private int mUploadConcurrency;
+            private final List<BatchUpload> mIdleUploads = new ArrayList<BatchUpload>();
+            private final LinkedList<long[]> mRetryRanges = new LinkedList<long[]>(); // Batches to send again, oldest first
+            private final List<long[]> mRefusedRanges = new ArrayList<long[]>(); // Events refused this flush, to send again next flush
+            private long mReadThroughId = -1; // The last id read into a new batch
+            private Flush mFlush; // The flush in progress, if any
             private long mFlushInterval; // XXX remove when associated deprecated APIs are removed
+
+            // The settings and progress of one flush, which lasts from a FLUSH_QUEUE message
+            // until the last of its uploads is done
+            private class Flush {
+                public Flush(String idempotencyKeyPrefix) {
+                    keyPrefix = idempotencyKeyPrefix;
+                    final String batchEndpoint = mConfig.getBatchEndpoint();
+                    asEnvelope = null != batchEndpoint;
+                    urls = asEnvelope ? new String[] { batchEndpoint } : mConfig.getEventsEndpoints();
+                    asJson = LBConfig.UPLOAD_FORMAT_JSON.equals(
+                            asEnvelope ? mConfig.getBatchEndpointFormat() : mConfig.getEventsEndpointFormat());
+                    streaming = mConfig.getStreamingUpload();
+                    concurrency = Math.max(1, mConfig.getUploadConcurrency());
+                    prefetchDepth = Math.max(0, mConfig.getUploadPrefetchDepth());
+                    startTime = SystemClock.elapsedRealtime();
+                }
+
+                public void prepare(BatchUpload upload) {
+                    upload.prepare(urls, asEnvelope, asJson, streaming, keyPrefix);
+                }
+
+                public final String keyPrefix; // Of the idempotency keys, kept with the DB
+                public final String[] urls;
+                public final boolean asEnvelope;
+                public final boolean asJson;
+                public final boolean streaming;
+                public final int concurrency;
+                public final int prefetchDepth;
+                public final long startTime;
+                public final LinkedList<BatchUpload> prefetched = new LinkedList<BatchUpload>(); // Read and prepared, but not sent yet
+                public long bytesSent;
+                public int batchCount;
+                public int inFlight;
+                public int rowsInFlight;
+                public boolean stopped; // Don't read any more batches
+                public boolean failed; // An upload has failed
+                public boolean flushAgain; // A flush was asked for after this one stopped
+                public boolean flushAgainHighPriority;
+            }
         }// AnalyticsMessageHandler
 
         private void updateFlushFrequency() {
@@ -408,14 +866,28 @@ import android.util.Log;
 
     // Used across thread boundaries
     private final Worker mWorker;
+    private final MpscRingBuffer<EventBuilder> mEventQueue;
+    private final AtomicBoolean mDrainScheduled;
     private final Context mContext;
     private final LBConfig mConfig;
 
     // Messages for our thread
-    private static int ENQUEUE_EVENTS = 1; // push given JSON message to events DB
+    private static int ENQUEUE_EVENTS = 1; // drain mEventQueue (and the given overflow event, if any) into the events DB
     private static int FLUSH_QUEUE = 2;
+    private static int UPLOAD_DONE = 3; // An upload thread is done with the BatchUpload in obj, or threw the Throwable in obj
     private static int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
 
+    // arg1 of FLUSH_QUEUE messages
+    private static final int PRIORITY_NORMAL = 0;
+    private static final int PRIORITY_HIGH = 1; // Sent even if the upload policy would rather wait for Wi-Fi
+
+    // obj of FLUSH_QUEUE messages the worker sends itself after a delay, so they can be told
+    // apart from flushes the app or the flush job (whose obj is its done callback) asked for
+    private static final Object TIMER_FLUSH = new Object();
+
+    private static final int EVENT_QUEUE_CAPACITY = 1024;
+    private static final long SUPER_PROPERTIES_TTL = 10 * 60 * 1000; // Catches carrier changes, which have no public broadcast
+
     private static final String LOGTAG = "LogbookAPI";
 
     private static final Map<Context, AnalyticsMessages> sInstances = new HashMap<Context, AnalyticsMessages>();
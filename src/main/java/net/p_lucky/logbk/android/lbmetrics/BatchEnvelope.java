@@ -0,0 +1,93 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds the batch payload format, where the device, app and library properties that
+ * every event carries are sent once per batch instead of once per event.
+ *
+ * <p>A batch looks like
+ *
+ * <pre>
+ * {@code
+ * {"common": {"libName": "logbk-android", "model": "Nexus 5", "randUser": "...", ...},
+ *  "events": [{"event": "_activation", "time": 1400000000}, ...]}
+ * }
+ * </pre>
+ *
+ * <p>The properties of an event are the properties in "common", overridden by the
+ * properties in its entry in "events". A property only goes in "common" if every
+ * event in the batch has it, with its most frequent value, so any event that has a
+ * different value keeps its own.
+ */
+/* package */ class BatchEnvelope {
+
+    /**
+     * @param events JSON objects for each event, as stored by LBDbAdapter
+     * @return the batch payload for events
+     */
+    public static JSONObject fromEvents(JSONArray events) throws JSONException {
+        final int eventCount = events.length();
+        final JSONObject common = new JSONObject();
+
+        if (eventCount > 0) {
+            final Map<Object, Integer> valueCounts = new HashMap<Object, Integer>();
+            for (final String key : COMMON_KEYS) {
+                valueCounts.clear();
+                Object mostFrequent = null;
+                int mostFrequentCount = 0;
+                for (int i = 0; i < eventCount; i++) {
+                    final Object value = events.getJSONObject(i).opt(key);
+                    if (null == value) {
+                        mostFrequent = null;
+                        break;
+                    }
+
+                    final Integer previousCount = valueCounts.get(value);
+                    final int count = null == previousCount ? 1 : previousCount + 1;
+                    valueCounts.put(value, count);
+                    if (count > mostFrequentCount) {
+                        mostFrequent = value;
+                        mostFrequentCount = count;
+                    }
+                }
+
+                if (null != mostFrequent) {
+                    common.put(key, mostFrequent);
+                }
+            }
+        }
+
+        final JSONArray deltas = new JSONArray();
+        for (int i = 0; i < eventCount; i++) {
+            final JSONObject event = events.getJSONObject(i);
+            final JSONObject delta = new JSONObject();
+            for (final Iterator<?> iter = event.keys(); iter.hasNext();) {
+                final String key = (String) iter.next();
+                final Object value = event.get(key);
+                if (! value.equals(common.opt(key))) {
+                    delta.put(key, value);
+                }
+            }
+            deltas.put(delta);
+        }
+
+        final JSONObject ret = new JSONObject();
+        ret.put("common", common);
+        ret.put("events", deltas);
+        return ret;
+    }
+
+    // Properties that are usually the same for every event from a device
+    private static final String[] COMMON_KEYS = {
+        "libName", "libVersion", "os", "osVersion", "manufacturer", "brand", "model",
+        "screenDpi", "screenHeight", "screenWidth", "appVersion", "hasNfc", "hasTelephone",
+        "bluetoothVersion", "carrier", "wifi", "bluetoothEnabled", "randUser"
+    };
+}
@@ -0,0 +1,116 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * What the server did with each event in a batch, for servers that can accept part of one.
+ *
+ * <p>Such a server answers with
+ *
+ * <pre>
+ * {@code
+ * {"accepted": [0, 2], "rejected": [1], "retry": [3]}
+ * }
+ * </pre>
+ *
+ * <p>where the numbers are positions in the batch's array of events. Accepted events were
+ * stored, and rejected events never will be (they're malformed, say), so both can be deleted.
+ * Events in "retry", or not listed at all, should be sent again. An event listed under
+ * "retry" is retried even if it is listed somewhere else too, since sending an event twice
+ * is better than losing it.
+ *
+ * <p>Older servers answer "1" or "0" for the whole batch, and {@link #parse(String, int)}
+ * returns null for those.
+ */
+/* package */ class BatchResponse {
+
+    /**
+     * @param response the body of the server's response
+     * @param batchSize the number of events in the batch that was sent
+     * @return the status of each event, or null if response doesn't report one
+     */
+    public static BatchResponse parse(String response, int batchSize) {
+        final String trimmed = response.trim();
+        if (! trimmed.startsWith("{")) {
+            return null;
+        }
+
+        final JSONObject json;
+        try {
+            json = new JSONObject(trimmed);
+        } catch (final JSONException e) {
+            return null;
+        }
+
+        final JSONArray accepted = json.optJSONArray("accepted");
+        final JSONArray rejected = json.optJSONArray("rejected");
+        final JSONArray retry = json.optJSONArray("retry");
+        if (null == accepted && null == rejected && null == retry) {
+            return null;
+        }
+
+        final byte[] statuses = new byte[batchSize]; // All RETRY
+        mark(statuses, accepted, ACCEPTED);
+        mark(statuses, rejected, REJECTED);
+        mark(statuses, retry, RETRY);
+        return new BatchResponse(statuses);
+    }
+
+    public int size() {
+        return mStatuses.length;
+    }
+
+    /**
+     * @return true if the event at index can be deleted, whether it was accepted or rejected
+     */
+    public boolean isAcknowledged(int index) {
+        return mStatuses[index] != RETRY;
+    }
+
+    public boolean isRejected(int index) {
+        return mStatuses[index] == REJECTED;
+    }
+
+    public int getAcknowledgedCount() {
+        return mStatuses.length - count(RETRY);
+    }
+
+    public int getRejectedCount() {
+        return count(REJECTED);
+    }
+
+    private BatchResponse(byte[] statuses) {
+        mStatuses = statuses;
+    }
+
+    private int count(byte status) {
+        int ret = 0;
+        for (final byte s : mStatuses) {
+            if (s == status) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    // Indices that aren't numbers or aren't in the batch are ignored
+    private static void mark(byte[] statuses, JSONArray indices, byte status) {
+        if (null == indices) {
+            return;
+        }
+        for (int i = 0; i < indices.length(); i++) {
+            final int index = indices.optInt(i, -1);
+            if (index >= 0 && index < statuses.length) {
+                statuses[index] = status;
+            }
+        }
+    }
+
+    private final byte[] mStatuses;
+
+    private static final byte RETRY = 0;
+    private static final byte ACCEPTED = 1;
+    private static final byte REJECTED = 2;
+}
@@ -0,0 +1,220 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import net.p_lucky.logbk.android.util.Base64Coder;
+import net.p_lucky.logbk.android.util.FormEncoder;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * One batch of events on its way to Logbook, and what became of it.
+ *
+ * <p>The batch is read and the request prepared on the Logbook worker thread, then
+ * {@link #call()} sends it, possibly on an upload thread, and the worker thread reads
+ * the result. Instances are reused from flush to flush, like the EventBatch they hold.
+ * Not thread-safe- only one thread may use an instance at a time.
+ *
+ * <p>Every request carries an idempotency key made from the ids of the first and last
+ * rows in the batch and the number of rows in it, so a batch sent again after a timeout,
+ * which the server may have stored after all, is sent with the same key and can be dropped
+ * as a duplicate. A batch made from what's left of another one after some of its rows
+ * were deleted has fewer rows, and so a different key.
+ */
+/* package */ class BatchUpload implements Callable<BatchUpload> {
+
+    // Results of call()
+    public static final int RESULT_SENT = 0; // The server took the request, see getResponse()
+    public static final int RESULT_FAILED = 1; // Couldn't reach the server, or it had a problem. Try again later.
+    public static final int RESULT_REFUSED = 2; // The server refused what was in the batch
+    public static final int RESULT_UNSENDABLE = 3; // This request can never be sent, so don't try again
+
+    public BatchUpload(Transport poster, EndpointHealth health) {
+        mPoster = poster;
+        mHealth = health;
+        mBatch = new EventBatch();
+        mEncoder = new FormEncoder();
+    }
+
+    /**
+     * @return the batch to send, to be filled by {@link LBDbAdapter#readBatch(LBDbAdapter.Table, EventBatch, int, int, long, long)}
+     */
+    public EventBatch getBatch() {
+        return mBatch;
+    }
+
+    /**
+     * Gets the request for the events in getBatch() ready to send.
+     *
+     * @param urls the endpoints to try, in order
+     * @param asEnvelope true to send the batch in a {@link BatchEnvelope}
+     * @param asJson true to send a JSON body, rather than a form
+     * @param streaming true to encode form bodies as they are sent. JSON bodies are always streamed.
+     * @param keyPrefix the start of the idempotency key, which should be unique to the database the batch was read from
+     */
+    public void prepare(String[] urls, boolean asEnvelope, boolean asJson, boolean streaming, String keyPrefix) {
+        mUrls = urls;
+        mAsJson = asJson;
+        mStreaming = streaming;
+        mResult = RESULT_FAILED;
+        mResponse = null;
+        mKeepAlive = false;
+
+        final int size = mBatch.size();
+        mIdempotencyKey = keyPrefix + "-" + mBatch.getRowId(0) + "-" + mBatch.getRowId(size - 1) + "-" + size;
+
+        mMessage = mBatch.getPayload();
+        if (asEnvelope) {
+            try {
+                mMessage = BatchEnvelope.fromEvents(new JSONArray(mMessage.toString())).toString();
+            } catch (final JSONException e) {
+                // Rows are checked when they're read, so this should never happen
+                throw new RuntimeException("Stored events are not a JSON array", e);
+            }
+        }
+
+        // In streaming mode the data field is Base64 and form encoded as it is written
+        // to the connection, rather than being copied into params first. JSON bodies
+        // aren't encoded at all, and are always streamed.
+        mParams = null;
+        mHeaders = null;
+        if (asJson) {
+            mHeaders = new HashMap<String, String>();
+            mHeaders.put("X-Logbook-Token", LogbookAPI.getToken());
+            mHeaders.put("Idempotency-Key", mIdempotencyKey);
+            if (LBConfig.DEBUG) {
+                mHeaders.put("X-Logbook-Verbose", "1");
+            }
+        } else {
+            mParams = new ArrayList<NameValuePair>(4);
+            mParams.add(new BasicNameValuePair("code", LogbookAPI.getToken()));
+            if (! streaming) {
+                mParams.add(new BasicNameValuePair("data", Base64Coder.encodeString(mMessage.toString())));
+            }
+            mParams.add(new BasicNameValuePair("idempotency_key", mIdempotencyKey));
+            if (LBConfig.DEBUG) {
+                mParams.add(new BasicNameValuePair("verbose", "1"));
+            }
+        }
+    }
+
+    /**
+     * Sends the prepared request, trying each url in turn until one answers, healthiest first.
+     * How each one did is recorded in the EndpointHealth.
+     *
+     * @return this, with the result filled in
+     */
+    @Override
+    public BatchUpload call() {
+        mResult = RESULT_FAILED;
+        mResponse = null;
+
+        for (final String url : mHealth.order(mUrls, SystemClock.elapsedRealtime())) {
+            try {
+                final byte[] response;
+                if (mAsJson) {
+                    response = mPoster.performJsonRequest(url, mHeaders, mMessage, mEncoder, mKeepAlive);
+                } else if (mStreaming) {
+                    response = mPoster.performStreamingRequest(url, mParams, "data", mMessage, mEncoder, mKeepAlive);
+                } else {
+                    response = mPoster.performRequest(url, mParams, mKeepAlive);
+                }
+                mResult = RESULT_SENT; // Whatever the response, 1 or 0
+                mHealth.recordSuccess(url);
+                if (null == response) {
+                    if (LBConfig.DEBUG) {
+                        Log.d(LOGTAG, "Response was null, unexpected failure posting to " + url + ".");
+                    }
+                } else {
+                    try {
+                        mResponse = new String(response, "UTF-8");
+                    } catch (final UnsupportedEncodingException e) {
+                        throw new RuntimeException("UTF not supported on this platform?", e);
+                    }
+
+                    if (LBConfig.DEBUG) {
+                        Log.d(LOGTAG, "Successfully posted " + mIdempotencyKey + " to " + url + ": \n" + mMessage);
+                        Log.d(LOGTAG, "Response was " + mResponse);
+                    }
+                }
+                break;
+            } catch (final OutOfMemoryError e) {
+                Log.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
+                mResult = RESULT_UNSENDABLE;
+                break;
+            } catch (final MalformedURLException e) {
+                Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
+                mResult = RESULT_UNSENDABLE;
+                break;
+            } catch (final ServerMessage.RejectedRequestException e) {
+                if (LBConfig.DEBUG)
+                    Log.d(LOGTAG, "Message refused by " + url + ".", e);
+                if (e.isBodyRejected()) {
+                    // The endpoint is fine, it's the batch that's the problem
+                    mHealth.recordSuccess(url);
+                    mResult = RESULT_REFUSED;
+                    break;
+                }
+                mHealth.recordFailure(url, SystemClock.elapsedRealtime());
+            } catch (final IOException e) {
+                if (LBConfig.DEBUG)
+                    Log.d(LOGTAG, "Cannot post message to " + url + ".", e);
+                mHealth.recordFailure(url, SystemClock.elapsedRealtime());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Says whether more requests will follow this one soon, like the rest of the batches
+     * in a flush, so its connection should be kept open for them. False until set.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    public int getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return the body of the server's response, if the result is RESULT_SENT and there was one
+     */
+    public String getResponse() {
+        return mResponse;
+    }
+
+    public String getIdempotencyKey() {
+        return mIdempotencyKey;
+    }
+
+    private final Transport mPoster;
+    private final EndpointHealth mHealth;
+    private final EventBatch mBatch;
+    private final FormEncoder mEncoder;
+    private String[] mUrls;
+    private boolean mAsJson;
+    private boolean mStreaming;
+    private CharSequence mMessage;
+    private List<NameValuePair> mParams;
+    private Map<String, String> mHeaders;
+    private boolean mKeepAlive;
+    private String mIdempotencyKey;
+    private int mResult;
+    private String mResponse;
+
+    private static final String LOGTAG = "LogbookAPI";
+}
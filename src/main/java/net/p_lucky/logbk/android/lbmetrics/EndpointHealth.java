@@ -0,0 +1,127 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of how well each endpoint has been answering, to decide which one to try first.
+ *
+ * <p>Every endpoint has a score: its smoothed round trip time, as measured by the
+ * transport's {@link RoundTripTimer}, made worse by the smoothed fraction of requests to it
+ * that failed. Endpoints the transport doesn't time all score the same. An endpoint that fails is left out for a cool
+ * down period. Endpoints are tried healthiest first, except that one that hasn't answered
+ * yet goes ahead of the rest, so each endpoint gets measured once before traffic settles
+ * on the fastest. Ties go to the endpoint earlier in the list.
+ *
+ * <p>Times are elapsed real time, passed in so the bookkeeping can be tested. Safe to use
+ * from several threads at once.
+ */
+/* package */ class EndpointHealth {
+
+    public EndpointHealth(long cooldown, RoundTripTimer roundTrips) {
+        mCooldown = cooldown;
+        mRoundTrips = roundTrips;
+        mEndpoints = new HashMap<String, Endpoint>();
+    }
+
+    /**
+     * @param urls endpoints, most preferred first
+     * @return the endpoints that aren't cooling down after a failure, healthiest first,
+     *     or all of them in the order given if every one of them is
+     */
+    public synchronized String[] order(String[] urls, long now) {
+        if (urls.length == 1) {
+            return urls;
+        }
+
+        final List<String> healthy = new ArrayList<String>(urls.length);
+        for (final String url : urls) {
+            final Endpoint endpoint = mEndpoints.get(url);
+            if (null == endpoint || endpoint.cooldownUntil <= now) {
+                healthy.add(url);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return urls;
+        }
+
+        // A stable sort, so ties keep their places in the list
+        Collections.sort(healthy, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Double.compare(score(lhs), score(rhs));
+            }
+        });
+        return healthy.toArray(new String[healthy.size()]);
+    }
+
+    public synchronized void recordSuccess(String url) {
+        final Endpoint endpoint = get(url);
+        endpoint.errorRate = endpoint.errorRate * (1 - GAIN);
+        endpoint.measured = true;
+        endpoint.cooldownUntil = 0;
+    }
+
+    public synchronized void recordFailure(String url, long now) {
+        final Endpoint endpoint = get(url);
+        endpoint.errorRate = endpoint.errorRate + (1 - endpoint.errorRate) * GAIN;
+        endpoint.cooldownUntil = now + mCooldown;
+    }
+
+    /**
+     * @return the smoothed latency of url in milliseconds, or -1 if it hasn't answered yet
+     */
+    public synchronized double getLatency(String url) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        return null == endpoint || ! endpoint.measured ? -1 : mRoundTrips.getSmoothedRtt(url);
+    }
+
+    /**
+     * @return the smoothed fraction of requests to url that failed, from 0 to 1
+     */
+    public synchronized double getErrorRate(String url) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        return null == endpoint ? 0 : endpoint.errorRate;
+    }
+
+    public synchronized boolean isCoolingDown(String url, long now) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        return null != endpoint && endpoint.cooldownUntil > now;
+    }
+
+    // Lower is better. Endpoints that haven't answered yet come first, to be measured.
+    private double score(String url) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        if (null == endpoint || ! endpoint.measured) {
+            return -1;
+        }
+        final double latency = Math.max(0, mRoundTrips.getSmoothedRtt(url));
+        return latency * (1 + ERROR_PENALTY * endpoint.errorRate);
+    }
+
+    private Endpoint get(String url) {
+        Endpoint ret = mEndpoints.get(url);
+        if (null == ret) {
+            ret = new Endpoint();
+            mEndpoints.put(url, ret);
+        }
+        return ret;
+    }
+
+    private static class Endpoint {
+        public boolean measured; // Has answered at least once
+        public double errorRate;
+        public long cooldownUntil;
+    }
+
+    private final long mCooldown;
+    private final RoundTripTimer mRoundTrips;
+    private final Map<String, Endpoint> mEndpoints;
+
+    private static final double GAIN = 0.25; // Weight of each new sample in the smoothed error rate
+    private static final double ERROR_PENALTY = 4; // An endpoint failing every request scores as five times slower
+}
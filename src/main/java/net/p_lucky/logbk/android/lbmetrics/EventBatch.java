@@ -0,0 +1,112 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+/**
+ * A batch of stored events read by {@link LBDbAdapter#readBatch(LBDbAdapter.Table, EventBatch)},
+ * as the JSON array text we send to Logbook and the ids of the rows in it.
+ *
+ * <p>Meant to be reused from flush to flush, so the payload buffer only
+ * grows once instead of being allocated for every batch. Not thread-safe.
+ */
+/* package */ class EventBatch {
+
+    public EventBatch() {
+        mPayload = new StringBuilder(INITIAL_CAPACITY);
+        mRowIds = new long[INITIAL_ROWS];
+        mRowAttempts = new int[INITIAL_ROWS];
+        clear();
+    }
+
+    public void clear() {
+        if (mPayload.capacity() > MAX_RETAINED_CAPACITY) {
+            mPayload = new StringBuilder(INITIAL_CAPACITY);
+        }
+        mPayload.setLength(0);
+        mLastId = -1;
+        mSize = 0;
+    }
+
+    /**
+     * @return the JSON array of events in this batch. Callers must not modify it.
+     */
+    public CharSequence getPayload() {
+        return mPayload;
+    }
+
+    public long getLastId() {
+        return mLastId;
+    }
+
+    /**
+     * @param index the position of an event in the payload array
+     * @return the id of the row that event was read from
+     */
+    public long getRowId(int index) {
+        checkIndex(index);
+        return mRowIds[index];
+    }
+
+    /**
+     * @param index the position of an event in the payload array
+     * @return the number of failed attempts to send that event so far
+     */
+    public int getRowAttempts(int index) {
+        checkIndex(index);
+        return mRowAttempts[index];
+    }
+
+    /**
+     * @return the ids of the rows in the batch, in the first size() elements. Callers must not modify it.
+     */
+    public long[] getRowIds() {
+        return mRowIds;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    ////////////////////////////////////////////////////
+    // For LBDbAdapter, while it fills the batch
+
+    /* package */ StringBuilder getPayloadBuilder() {
+        return mPayload;
+    }
+
+    /* package */ void addRow(long id, int attempts) {
+        if (mSize == mRowIds.length) {
+            final long[] grownIds = new long[mSize * 2];
+            System.arraycopy(mRowIds, 0, grownIds, 0, mSize);
+            mRowIds = grownIds;
+            final int[] grownAttempts = new int[mSize * 2];
+            System.arraycopy(mRowAttempts, 0, grownAttempts, 0, mSize);
+            mRowAttempts = grownAttempts;
+        }
+        mRowIds[mSize] = id;
+        mRowAttempts[mSize] = attempts;
+        mSize++;
+    }
+
+    /* package */ void setLastId(long id) {
+        mLastId = id;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("No event " + index + " in a batch of " + mSize);
+        }
+    }
+
+    private StringBuilder mPayload;
+    private long[] mRowIds;
+    private int[] mRowAttempts;
+    private long mLastId;
+    private int mSize;
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int INITIAL_ROWS = 64;
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024; // Don't hold on to the buffer from one huge batch forever
+}
@@ -0,0 +1,201 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A typed, reusable set of properties describing a single Logbook event.
+ *
+ * <p>Get an instance with {@link LogbookAPI#newEvent(String)}, add properties with
+ * the put methods and pass it to {@link LogbookAPI#track(EventBuilder)}:
+ *
+ * <pre>
+ * {@code
+ * mLogbook.track(mLogbook.newEvent("scroll").put("depth", depth).put("fling", true));
+ * }
+ * </pre>
+ *
+ * <p>Primitive values are kept unboxed and are only turned into JSON on the Logbook
+ * worker thread, and builders are pooled, so tracking from scroll or render callbacks
+ * does not produce garbage on the calling thread.
+ *
+ * <p>Once an EventBuilder has been passed to track, it belongs to the library and will
+ * be recycled after the event is stored. Callers must not touch it again.
+ */
+public final class EventBuilder {
+
+    /**
+     * Returns an empty EventBuilder from the pool, or a new one if the pool is empty.
+     * Most callers should use {@link LogbookAPI#newEvent(String)} instead.
+     *
+     * @param eventName The name of the event to send
+     */
+    public static EventBuilder obtain(String eventName) {
+        EventBuilder ret = null;
+        synchronized (sPoolSync) {
+            if (null != sPool) {
+                ret = sPool;
+                sPool = ret.mNext;
+                ret.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (null == ret) {
+            ret = new EventBuilder();
+        }
+        ret.mEventName = eventName;
+        return ret;
+    }
+
+    public EventBuilder put(String key, long value) {
+        final int i = slotFor(key, TYPE_LONG);
+        mLongs[i] = value;
+        return this;
+    }
+
+    public EventBuilder put(String key, double value) {
+        final int i = slotFor(key, TYPE_DOUBLE);
+        mLongs[i] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+    public EventBuilder put(String key, boolean value) {
+        final int i = slotFor(key, TYPE_BOOLEAN);
+        mLongs[i] = value ? 1 : 0;
+        return this;
+    }
+
+    public EventBuilder put(String key, String value) {
+        final int i = slotFor(key, TYPE_STRING);
+        mStrings[i] = value;
+        return this;
+    }
+
+    public String getEventName() {
+        return mEventName;
+    }
+
+    /**
+     * @return the number of properties set on this event
+     */
+    public int size() {
+        return mSize;
+    }
+
+    ////////////////////////////////////////////////////
+
+    /**
+     * Copies all properties of this event into the given object, overwriting
+     * any properties with the same names. Only called from the Logbook worker thread.
+     */
+    /* package */ void writeTo(JSONObject target) throws JSONException {
+        for (int i = 0; i < mSize; i++) {
+            final String key = mKeys[i];
+            switch (mTypes[i]) {
+            case TYPE_LONG:
+                target.put(key, mLongs[i]);
+                break;
+            case TYPE_DOUBLE:
+                target.put(key, Double.longBitsToDouble(mLongs[i]));
+                break;
+            case TYPE_BOOLEAN:
+                target.put(key, mLongs[i] != 0);
+                break;
+            case TYPE_STRING:
+                target.put(key, null == mStrings[i] ? JSONObject.NULL : mStrings[i]);
+                break;
+            default:
+                throw new IllegalStateException("Unknown property type " + mTypes[i]);
+            }
+        }
+    }
+
+    /**
+     * Clears this builder and returns it to the pool. The arrays are kept,
+     * so a recycled builder can be filled again without allocating.
+     */
+    /* package */ void recycle() {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = null;
+            mStrings[i] = null;
+        }
+        mSize = 0;
+        mEventName = null;
+
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    // Returns the index of key, replacing any value already stored there
+    private int slotFor(String key, byte type) {
+        if (null == key) {
+            throw new IllegalArgumentException("Property names can't be null");
+        }
+
+        int i = 0;
+        while (i < mSize && !key.equals(mKeys[i])) {
+            i++;
+        }
+        if (i == mSize) {
+            if (mSize == mKeys.length) {
+                grow();
+            }
+            mKeys[i] = key;
+            mSize++;
+        }
+        mTypes[i] = type;
+        mStrings[i] = null;
+        return i;
+    }
+
+    private void grow() {
+        final int capacity = mKeys.length * 2;
+
+        final String[] keys = new String[capacity];
+        final byte[] types = new byte[capacity];
+        final long[] longs = new long[capacity];
+        final String[] strings = new String[capacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        System.arraycopy(mTypes, 0, types, 0, mSize);
+        System.arraycopy(mLongs, 0, longs, 0, mSize);
+        System.arraycopy(mStrings, 0, strings, 0, mSize);
+
+        mKeys = keys;
+        mTypes = types;
+        mLongs = longs;
+        mStrings = strings;
+    }
+
+    private EventBuilder() {
+        mKeys = new String[INITIAL_CAPACITY];
+        mTypes = new byte[INITIAL_CAPACITY];
+        mLongs = new long[INITIAL_CAPACITY];
+        mStrings = new String[INITIAL_CAPACITY];
+        mSize = 0;
+    }
+
+    private String mEventName;
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mLongs; // long values, double bits, or 0/1 for booleans
+    private String[] mStrings;
+    private int mSize;
+    private EventBuilder mNext;
+
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_BOOLEAN = 3;
+    private static final byte TYPE_STRING = 4;
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int MAX_POOL_SIZE = 50;
+
+    private static EventBuilder sPool;
+    private static int sPoolSize = 0;
+    private static final Object sPoolSync = new Object();
+}
@@ -0,0 +1,392 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compact binary encoding for stored events.
+ *
+ * <p>An encoded event is a varint property count followed by each property as a
+ * name, a type tag and a value. Property names, event names and the values of
+ * properties that repeat on every event (device, app and user ids) are replaced
+ * by varint references into a dictionary of terms. Integers are zigzag varints,
+ * so a timestamp in seconds takes five bytes instead of ten characters.
+ *
+ * <p>The dictionary is owned by the caller, which must persist the terms returned
+ * by {@link #takeNewTerms()} after each encode, and hand them back with
+ * {@link #addTerm(int, String)} before decoding. Not thread-safe.
+ */
+/* package */ class EventCodec {
+
+    public EventCodec(int maxTerms) {
+        mMaxTerms = maxTerms;
+        mTermIds = new HashMap<String, Integer>();
+        mTerms = new ArrayList<String>();
+        mNewTerms = new ArrayList<String>();
+        mBuffer = new byte[256];
+    }
+
+    /**
+     * Adds a term read back from storage. Terms must be added in id order, starting from zero.
+     */
+    public void addTerm(int id, String term) {
+        if (id != mTerms.size()) {
+            throw new IllegalArgumentException("Term " + id + " added out of order, expected " + mTerms.size());
+        }
+        mTerms.add(term);
+        mTermIds.put(term, id);
+    }
+
+    public int getTermCount() {
+        return mTerms.size();
+    }
+
+    /**
+     * Returns the terms created by encode calls since the last call to this method.
+     * Their ids are consecutive, starting at getTermCount() - returned list size.
+     */
+    public List<String> takeNewTerms() {
+        final List<String> ret = new ArrayList<String>(mNewTerms);
+        mNewTerms.clear();
+        return ret;
+    }
+
+    public byte[] encode(JSONObject event) throws JSONException {
+        mLength = 0;
+        writeVarint(event.length());
+        for (final Iterator<?> iter = event.keys(); iter.hasNext();) {
+            final String key = (String) iter.next();
+            final Object value = event.get(key);
+            writeTerm(key, true);
+
+            if (value == JSONObject.NULL) {
+                writeByte(TYPE_NULL);
+            } else if (value instanceof Boolean) {
+                writeByte(((Boolean) value).booleanValue() ? TYPE_TRUE : TYPE_FALSE);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                final long l = ((Number) value).longValue();
+                writeByte(TYPE_LONG);
+                writeVarint((l << 1) ^ (l >> 63));
+            } else if (value instanceof Double || value instanceof Float) {
+                final long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                writeByte(TYPE_DOUBLE);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    writeByte((int) (bits >>> shift));
+                }
+            } else if (value instanceof String) {
+                final String s = (String) value;
+                if (isTermValue(key) && canBeTerm(s)) {
+                    writeByte(TYPE_TERM);
+                    writeTerm(s, false);
+                } else {
+                    writeByte(TYPE_STRING);
+                    writeString(s);
+                }
+            } else {
+                // Nested objects, arrays and unusual numbers are rare enough to keep as JSON
+                final String json = (value instanceof Number) ?
+                        JSONObject.numberToString((Number) value) : value.toString();
+                writeByte(TYPE_JSON);
+                writeString(json);
+            }
+        }
+
+        final byte[] ret = new byte[mLength];
+        System.arraycopy(mBuffer, 0, ret, 0, mLength);
+        return ret;
+    }
+
+    public JSONObject decode(byte[] data) throws JSONException {
+        mReadPosition = 0;
+        mReadBuffer = data;
+        try {
+            final JSONObject ret = new JSONObject();
+            final long count = readVarint();
+            for (long i = 0; i < count; i++) {
+                final String key = readTerm();
+                final int type = readByte();
+                switch (type) {
+                case TYPE_NULL:
+                    ret.put(key, JSONObject.NULL);
+                    break;
+                case TYPE_TRUE:
+                    ret.put(key, true);
+                    break;
+                case TYPE_FALSE:
+                    ret.put(key, false);
+                    break;
+                case TYPE_LONG:
+                    final long zigzag = readVarint();
+                    final long l = (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (l == (int) l) {
+                        ret.put(key, (int) l); // the same type JSON parsing would give us
+                    } else {
+                        ret.put(key, l);
+                    }
+                    break;
+                case TYPE_DOUBLE:
+                    long bits = 0;
+                    for (int b = 0; b < 8; b++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    ret.put(key, Double.longBitsToDouble(bits));
+                    break;
+                case TYPE_STRING:
+                    ret.put(key, readString());
+                    break;
+                case TYPE_TERM:
+                    ret.put(key, readTerm());
+                    break;
+                case TYPE_JSON:
+                    ret.put(key, new JSONTokener(readString()).nextValue());
+                    break;
+                default:
+                    throw new JSONException("Unknown type " + type + " in stored event");
+                }
+            }
+            return ret;
+        } catch (final IndexOutOfBoundsException e) {
+            throw new JSONException("Stored event is truncated");
+        } finally {
+            mReadBuffer = null;
+        }
+    }
+
+    /**
+     * Appends the event in data to out as JSON object text, without building a JSONObject.
+     * If the event can't be decoded, out may have been partly written to.
+     */
+    public void appendJson(byte[] data, StringBuilder out) throws JSONException {
+        mReadPosition = 0;
+        mReadBuffer = data;
+        try {
+            out.append('{');
+            final long count = readVarint();
+            for (long i = 0; i < count; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendQuoted(readTerm(), out);
+                out.append(':');
+
+                final int type = readByte();
+                switch (type) {
+                case TYPE_NULL:
+                    out.append("null");
+                    break;
+                case TYPE_TRUE:
+                    out.append("true");
+                    break;
+                case TYPE_FALSE:
+                    out.append("false");
+                    break;
+                case TYPE_LONG:
+                    final long zigzag = readVarint();
+                    out.append((zigzag >>> 1) ^ -(zigzag & 1));
+                    break;
+                case TYPE_DOUBLE:
+                    long bits = 0;
+                    for (int b = 0; b < 8; b++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    out.append(JSONObject.numberToString(Double.longBitsToDouble(bits)));
+                    break;
+                case TYPE_STRING:
+                    appendQuoted(readString(), out);
+                    break;
+                case TYPE_TERM:
+                    appendQuoted(readTerm(), out);
+                    break;
+                case TYPE_JSON:
+                    out.append(readString()); // already JSON text
+                    break;
+                default:
+                    throw new JSONException("Unknown type " + type + " in stored event");
+                }
+            }
+            out.append('}');
+        } catch (final IndexOutOfBoundsException e) {
+            throw new JSONException("Stored event is truncated");
+        } finally {
+            mReadBuffer = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////
+
+    private static void appendQuoted(String s, StringBuilder out) {
+        out.append('"');
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+            case '\\':
+                out.append('\\').append(c);
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append("\\u00");
+                    out.append(HEX_DIGITS[c >> 4]);
+                    out.append(HEX_DIGITS[c & 0xF]);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    private static boolean isTermValue(String key) {
+        for (final String termKey : TERM_VALUE_KEYS) {
+            if (termKey.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean canBeTerm(String s) {
+        return s.length() <= MAX_TERM_LENGTH;
+    }
+
+    // Writes (id + 1), or 0 followed by the string itself if the dictionary is full
+    private void writeTerm(String term, boolean checkLength) {
+        Integer id = mTermIds.get(term);
+        if (null == id && mTerms.size() < mMaxTerms && (!checkLength || canBeTerm(term))) {
+            id = mTerms.size();
+            mTerms.add(term);
+            mTermIds.put(term, id);
+            mNewTerms.add(term);
+        }
+
+        if (null == id) {
+            writeVarint(0);
+            writeString(term);
+        } else {
+            writeVarint(id + 1);
+        }
+    }
+
+    private String readTerm() throws JSONException {
+        final long ref = readVarint();
+        if (ref == 0) {
+            return readString();
+        }
+        if (ref > mTerms.size()) {
+            throw new JSONException("Stored event refers to unknown term " + (ref - 1));
+        }
+        return mTerms.get((int) ref - 1);
+    }
+
+    private void writeString(String s) {
+        final byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private String readString() {
+        final int length = (int) readVarint();
+        final String ret;
+        try {
+            ret = new String(mReadBuffer, mReadPosition, length, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+        mReadPosition += length;
+        return ret;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value = value >>> 7;
+        }
+        writeByte((int) value);
+    }
+
+    private long readVarint() {
+        long ret = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = readByte();
+            ret = ret | ((long) (b & 0x7F) << shift);
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return ret;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        mBuffer[mLength] = (byte) b;
+        mLength++;
+    }
+
+    private int readByte() {
+        final int ret = mReadBuffer[mReadPosition] & 0xFF;
+        mReadPosition++;
+        return ret;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            final byte[] bigger = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+            System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+            mBuffer = bigger;
+        }
+    }
+
+    private final int mMaxTerms;
+    private final Map<String, Integer> mTermIds;
+    private final List<String> mTerms;
+    private final List<String> mNewTerms;
+
+    private byte[] mBuffer; // reused between calls to encode
+    private int mLength;
+    private byte[] mReadBuffer;
+    private int mReadPosition;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_TRUE = 1;
+    private static final int TYPE_FALSE = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_DOUBLE = 4;
+    private static final int TYPE_STRING = 5;
+    private static final int TYPE_TERM = 6;
+    private static final int TYPE_JSON = 7;
+
+    private static final int MAX_TERM_LENGTH = 128;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // String properties whose values are dictionary coded. Everything else is stored inline,
+    // so arbitrary user values can't fill up the dictionary.
+    private static final String[] TERM_VALUE_KEYS = {
+        "event", "libName", "libVersion", "os", "osVersion", "manufacturer", "brand", "model",
+        "appVersion", "carrier", "bluetoothVersion", "randUser"
+    };
+}
@@ -0,0 +1,166 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import net.p_lucky.logbk.android.util.Base64Coder;
+import net.p_lucky.logbk.android.util.FormEncoder;
+
+import org.apache.http.NameValuePair;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Transport} that appends every event it is given to a file, as newline
+ * delimited JSON, instead of sending it anywhere. Events sent in a {@link BatchEnvelope}
+ * are written with the "common" properties put back in, so every line is a whole event.
+ *
+ * <p>Each batch is written with a single channel write, and batches from different
+ * threads are never interleaved. Never compresses, and the file is kept open whatever
+ * the keep-alive hint.
+ */
+/* package */ class FileTransport implements Transport {
+
+    public FileTransport(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public boolean usesNetwork() {
+        return false;
+    }
+
+    @Override
+    public byte[] performRequest(String endpointUrl, List<NameValuePair> params, boolean keepAlive) throws IOException {
+        String data = null;
+        if (null != params) {
+            for (final NameValuePair param : params) {
+                if ("data".equals(param.getName())) {
+                    data = Base64Coder.decodeString(param.getValue());
+                }
+            }
+        }
+        if (null == data) {
+            throw new ServerMessage.RejectedRequestException("No data field in request for " + mFile, HTTP_BAD_REQUEST);
+        }
+        return write(data);
+    }
+
+    @Override
+    public byte[] performStreamingRequest(String endpointUrl, List<NameValuePair> params,
+                                          String base64Name, CharSequence base64Value,
+                                          FormEncoder encoder, boolean keepAlive) throws IOException {
+        return write(base64Value.toString());
+    }
+
+    @Override
+    public byte[] performJsonRequest(String endpointUrl, Map<String, String> headers,
+                                     CharSequence json, FormEncoder encoder, boolean keepAlive) throws IOException {
+        return write(json.toString());
+    }
+
+    @Override
+    public void setRequestCompression(String encoding) {
+        // Nothing to gain from compressing a local file
+    }
+
+    @Override
+    public UploadStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public RoundTripTimer getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    /**
+     * Closes the file. Requests made after this fail, so they are kept to be sent again.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        if (null != mChannel) {
+            try {
+                mChannel.close();
+            } finally {
+                mChannel = null;
+            }
+        }
+    }
+
+    private byte[] write(String payload) throws IOException {
+        final StringBuilder lines = new StringBuilder(payload.length() + 16);
+        try {
+            final String trimmed = payload.trim();
+            if (trimmed.startsWith("{")) {
+                final JSONObject envelope = new JSONObject(trimmed);
+                final JSONObject common = envelope.optJSONObject("common");
+                final JSONArray events = envelope.getJSONArray("events");
+                for (int i = 0; i < events.length(); i++) {
+                    lines.append(withCommon(common, events.getJSONObject(i)).toString()).append('\n');
+                }
+            } else {
+                final JSONArray events = new JSONArray(trimmed);
+                for (int i = 0; i < events.length(); i++) {
+                    lines.append(events.get(i).toString()).append('\n');
+                }
+            }
+        } catch (final JSONException e) {
+            throw new ServerMessage.RejectedRequestException("Can't read events for " + mFile + ": " + e.getMessage(), HTTP_BAD_REQUEST);
+        }
+
+        final byte[] bytes;
+        try {
+            bytes = lines.toString().getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException(mFile + " is closed");
+            }
+            if (null == mChannel) {
+                mChannel = new FileOutputStream(mFile, true).getChannel();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+        mStats.recordUpload(bytes.length, bytes.length);
+        return RESPONSE;
+    }
+
+    // The properties of event are those in common, overridden by its own
+    private static JSONObject withCommon(JSONObject common, JSONObject event) throws JSONException {
+        if (null == common) {
+            return event;
+        }
+        final JSONObject ret = new JSONObject(common.toString());
+        final Iterator<?> keys = event.keys();
+        while (keys.hasNext()) {
+            final String key = (String) keys.next();
+            ret.put(key, event.get(key));
+        }
+        return ret;
+    }
+
+    private final File mFile;
+    private final UploadStats mStats = new UploadStats();
+    private final RoundTripTimer mRoundTrips = new RoundTripTimer(0, 0); // Never fed, writes have no round trip
+    private FileChannel mChannel; // Opened by the first request
+    private boolean mClosed;
+
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final byte[] RESPONSE = { '1', '\n' };
+}
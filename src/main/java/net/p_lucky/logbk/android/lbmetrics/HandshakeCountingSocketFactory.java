@@ -0,0 +1,82 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An SSLSocketFactory that counts the TLS handshakes made on the sockets it creates,
+ * in an {@link UploadStats}. Otherwise behaves exactly like the factory it wraps.
+ *
+ * <p>HttpURLConnection only reuses pooled connections made by the same factory, so
+ * one instance should be used for all the requests that may share connections.
+ */
+/* package */ class HandshakeCountingSocketFactory extends SSLSocketFactory {
+
+    public HandshakeCountingSocketFactory(SSLSocketFactory delegate, UploadStats stats) {
+        mDelegate = delegate;
+        mStats = stats;
+        mListener = new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                mStats.recordHandshake();
+            }
+        };
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return listen(mDelegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return listen(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return listen(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return listen(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return listen(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return listen(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket listen(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).addHandshakeCompletedListener(mListener);
+        }
+        return socket;
+    }
+
+    private final SSLSocketFactory mDelegate;
+    private final UploadStats mStats;
+    private final HandshakeCompletedListener mListener;
+}
@@ -1,5 +1,12 @@
 package net.p_lucky.logbk.android.lbmetrics;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import net.p_lucky.logbk.android.util.BodyCompressor;
+
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -15,6 +22,18 @@ public class LBConfig {
 
     public static boolean DEBUG = false;
 
+    public static final String DEFAULT_DATABASE_SYNCHRONOUS = "NORMAL";
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    // Ways of sending events to an endpoint. See getEventsEndpointFormat()
+    public static final String UPLOAD_FORMAT_FORM = "form";
+    public static final String UPLOAD_FORMAT_JSON = "json";
+
+    // Where uploads go. See getTransport()
+    public static final String TRANSPORT_HTTP = "http";
+    public static final String TRANSPORT_FILE = "file";
+    public static final String TRANSPORT_LOOPBACK = "loopback";
+
     // Instances are safe to store, since they're immutable and always the same.
     public static LBConfig getInstance(Context context) {
         synchronized (sInstanceLock) {
@@ -33,6 +52,19 @@ public class LBConfig {
         mBulkUploadLimit = metaData.getInt("net.p_lucky.logbk.android.LBConfig.BulkUploadLimit", 40); // 40 records default
         mFlushInterval = metaData.getInt("net.p_lucky.logbk.android.LBConfig.FlushInterval", 60 * 1000); // one minute default
         mDataExpiration = metaData.getInt("net.p_lucky.logbk.android.LBConfig.DataExpiration",  1000 * 60 * 60 * 24 * 5); // 5 days default
+        mMaxBatchBytes = metaData.getInt("net.p_lucky.logbk.android.LBConfig.MaxBatchBytes", DEFAULT_MAX_BATCH_BYTES);
+        mFlushTimeBudget = metaData.getInt("net.p_lucky.logbk.android.LBConfig.FlushTimeBudget", 30 * 1000); // 30 seconds default
+        mFlushByteBudget = metaData.getInt("net.p_lucky.logbk.android.LBConfig.FlushByteBudget", 1024 * 1024); // 1MB default
+        mRetryBaseDelay = metaData.getInt("net.p_lucky.logbk.android.LBConfig.RetryBaseDelay", 30 * 1000); // 30 seconds default
+        mRetryMaxDelay = metaData.getInt("net.p_lucky.logbk.android.LBConfig.RetryMaxDelay", 30 * 60 * 1000); // 30 minutes default
+        mCircuitBreakerThreshold = metaData.getInt("net.p_lucky.logbk.android.LBConfig.CircuitBreakerThreshold", 5);
+        mCircuitBreakerCooldown = metaData.getInt("net.p_lucky.logbk.android.LBConfig.CircuitBreakerCooldown", 60 * 60 * 1000); // one hour default
+        mMaxEventAttempts = metaData.getInt("net.p_lucky.logbk.android.LBConfig.MaxEventAttempts", 5);
+        mUploadConcurrency = metaData.getInt("net.p_lucky.logbk.android.LBConfig.UploadConcurrency", 1);
+        mUploadPrefetchDepth = metaData.getInt("net.p_lucky.logbk.android.LBConfig.UploadPrefetchDepth", 1);
+        mMeteredBacklogLimit = metaData.getInt("net.p_lucky.logbk.android.LBConfig.MeteredBacklogLimit", -1);
+        mUseJobScheduler = metaData.getBoolean("net.p_lucky.logbk.android.LBConfig.UseJobScheduler", false);
+        mFlushJobWindow = metaData.getInt("net.p_lucky.logbk.android.LBConfig.FlushJobWindow", 5 * 60 * 1000); // five minutes default
 
         String eventsEndpoint = metaData.getString("net.p_lucky.logbk.android.LBConfig.EventsEndpoint");
         if (null == eventsEndpoint) {
@@ -40,14 +72,95 @@ public class LBConfig {
         }
         mEventsEndpoint = eventsEndpoint;
 
+        final String eventsEndpoints = metaData.getString("net.p_lucky.logbk.android.LBConfig.EventsEndpoints");
+        mEventsEndpoints = null == eventsEndpoints ? null : readEndpointList(eventsEndpoints);
+        mEndpointCooldown = metaData.getInt("net.p_lucky.logbk.android.LBConfig.EndpointCooldown", 5 * 60 * 1000); // five minutes default
+        mMinRequestTimeout = metaData.getInt("net.p_lucky.logbk.android.LBConfig.MinRequestTimeout", ServerMessage.DEFAULT_MIN_TIMEOUT);
+        mMaxRequestTimeout = metaData.getInt("net.p_lucky.logbk.android.LBConfig.MaxRequestTimeout", ServerMessage.DEFAULT_MAX_TIMEOUT);
+
+        mEventsEndpointFormat = readUploadFormat(metaData, "EventsEndpointFormat");
+
+        mBatchEndpoint = metaData.getString("net.p_lucky.logbk.android.LBConfig.BatchEndpoint");
+        mBatchEndpointFormat = readUploadFormat(metaData, "BatchEndpointFormat");
+        mStreamingUpload = metaData.getBoolean("net.p_lucky.logbk.android.LBConfig.StreamingUpload", false);
+
+        String transport = metaData.getString("net.p_lucky.logbk.android.LBConfig.Transport");
+        if (null == transport) {
+            transport = TRANSPORT_HTTP;
+        }
+        transport = transport.toLowerCase(Locale.US);
+        if (! TRANSPORT_HTTP.equals(transport) && ! TRANSPORT_FILE.equals(transport) && ! TRANSPORT_LOOPBACK.equals(transport)) {
+            Log.w(LOGTAG, "Unknown Transport value " + transport + ", using " + TRANSPORT_HTTP);
+            transport = TRANSPORT_HTTP;
+        }
+        mTransport = transport;
+
+        String transportFile = metaData.getString("net.p_lucky.logbk.android.LBConfig.TransportFile");
+        if (null == transportFile) {
+            transportFile = "logbook-events.ndjson";
+        }
+        mTransportFile = transportFile;
+        mLoopbackLatency = metaData.getInt("net.p_lucky.logbk.android.LBConfig.LoopbackLatency", 0);
+        mLoopbackErrorPercent = metaData.getInt("net.p_lucky.logbk.android.LBConfig.LoopbackErrorPercent", 0);
+
+        String requestCompression = metaData.getString("net.p_lucky.logbk.android.LBConfig.RequestCompression");
+        if (null != requestCompression) {
+            requestCompression = requestCompression.toLowerCase(Locale.US);
+            if ("none".equals(requestCompression)) {
+                requestCompression = null;
+            } else if (! BodyCompressor.GZIP.equals(requestCompression) && ! BodyCompressor.DEFLATE.equals(requestCompression)) {
+                Log.w(LOGTAG, "Unknown RequestCompression value " + requestCompression + ", requests will not be compressed");
+                requestCompression = null;
+            }
+        }
+        mRequestCompression = requestCompression;
+
+        String databaseSynchronous = metaData.getString("net.p_lucky.logbk.android.LBConfig.DatabaseSynchronous");
+        if (null == databaseSynchronous) {
+            databaseSynchronous = DEFAULT_DATABASE_SYNCHRONOUS;
+        }
+        databaseSynchronous = databaseSynchronous.toUpperCase(Locale.US);
+        if (! "OFF".equals(databaseSynchronous) && ! "NORMAL".equals(databaseSynchronous) && ! "FULL".equals(databaseSynchronous)) {
+            Log.w(LOGTAG, "Unknown DatabaseSynchronous value " + databaseSynchronous + ", using " + DEFAULT_DATABASE_SYNCHRONOUS);
+            databaseSynchronous = DEFAULT_DATABASE_SYNCHRONOUS;
+        }
+        mDatabaseSynchronous = databaseSynchronous;
+
         if (DEBUG) {
             Log.d(LOGTAG,
                 "Logbook configured with:\n" +
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
+                "    MaxBatchBytes " + getMaxBatchBytes() + "\n" +
+                "    FlushTimeBudget " + getFlushTimeBudget() + "\n" +
+                "    FlushByteBudget " + getFlushByteBudget() + "\n" +
+                "    RetryBaseDelay " + getRetryBaseDelay() + "\n" +
+                "    RetryMaxDelay " + getRetryMaxDelay() + "\n" +
+                "    CircuitBreakerThreshold " + getCircuitBreakerThreshold() + "\n" +
+                "    CircuitBreakerCooldown " + getCircuitBreakerCooldown() + "\n" +
+                "    MaxEventAttempts " + getMaxEventAttempts() + "\n" +
+                "    UploadConcurrency " + getUploadConcurrency() + "\n" +
+                "    UploadPrefetchDepth " + getUploadPrefetchDepth() + "\n" +
+                "    MeteredBacklogLimit " + getMeteredBacklogLimit() + "\n" +
+                "    UseJobScheduler " + getUseJobScheduler() + "\n" +
+                "    FlushJobWindow " + getFlushJobWindow() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
-                "    EventsEndpoint " + getEventsEndpoint() + "\n"
+                "    EventsEndpoint " + getEventsEndpoint() + "\n" +
+                "    EventsEndpoints " + Arrays.toString(getEventsEndpoints()) + "\n" +
+                "    EndpointCooldown " + getEndpointCooldown() + "\n" +
+                "    MinRequestTimeout " + getMinRequestTimeout() + "\n" +
+                "    MaxRequestTimeout " + getMaxRequestTimeout() + "\n" +
+                "    EventsEndpointFormat " + getEventsEndpointFormat() + "\n" +
+                "    BatchEndpoint " + getBatchEndpoint() + "\n" +
+                "    BatchEndpointFormat " + getBatchEndpointFormat() + "\n" +
+                "    StreamingUpload " + getStreamingUpload() + "\n" +
+                "    Transport " + getTransport() + "\n" +
+                "    TransportFile " + getTransportFile() + "\n" +
+                "    LoopbackLatency " + getLoopbackLatency() + "\n" +
+                "    LoopbackErrorPercent " + getLoopbackErrorPercent() + "\n" +
+                "    RequestCompression " + getRequestCompression() + "\n" +
+                "    DatabaseSynchronous " + getDatabaseSynchronous() + "\n"
             );
         }
     }
@@ -67,13 +180,197 @@ public class LBConfig {
         return mDataExpiration;
     }
 
+    // Max size in bytes of the events sent in one request. A batch always holds at
+    // least one event, even if that event alone is bigger than this.
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+
+    // A flush keeps sending batches until the queue is empty, or until it has been
+    // sending for this many milliseconds. The rest waits for the next flush.
+    public int getFlushTimeBudget() {
+        return mFlushTimeBudget;
+    }
+
+    // Max bytes of events sent by one flush, for the same purpose as the time budget.
+    public int getFlushByteBudget() {
+        return mFlushByteBudget;
+    }
+
+    // After a failed upload, the next one waits a random time of up to RetryBaseDelay milliseconds,
+    // doubling with each consecutive failure, but never more than RetryMaxDelay.
+    public int getRetryBaseDelay() {
+        return mRetryBaseDelay;
+    }
+
+    public int getRetryMaxDelay() {
+        return mRetryMaxDelay;
+    }
+
+    // After this many consecutive failed uploads, stop trying for CircuitBreakerCooldown milliseconds
+    public int getCircuitBreakerThreshold() {
+        return mCircuitBreakerThreshold;
+    }
+
+    public int getCircuitBreakerCooldown() {
+        return mCircuitBreakerCooldown;
+    }
+
+    // An event the server has refused this many times, on its own, is quarantined instead of retried
+    public int getMaxEventAttempts() {
+        return mMaxEventAttempts;
+    }
+
+    // How many batches may be on their way to the server at once
+    public int getUploadConcurrency() {
+        return mUploadConcurrency;
+    }
+
+    // How many batches may be read and encoded ahead, while others are being uploaded
+    public int getUploadPrefetchDepth() {
+        return mUploadPrefetchDepth;
+    }
+
+    // Off Wi-Fi and not charging, a backlog of more than this many events waits for Wi-Fi or a
+    // charger, unless flush() was called. Smaller backlogs are sent right away. -1 (the default) never waits.
+    public int getMeteredBacklogLimit() {
+        return mMeteredBacklogLimit;
+    }
+
+    // If true, on Lollipop and later, flushes that can wait are left to the platform job scheduler
+    // instead of a timer, so they can be sent along with other apps' traffic rather than waking
+    // the radio by themselves. Retries after a failure still use a timer.
+    public boolean getUseJobScheduler() {
+        return mUseJobScheduler;
+    }
+
+    // How long after FlushInterval the job scheduler may hold a flush back for
+    public int getFlushJobWindow() {
+        return mFlushJobWindow;
+    }
+
     // Preferred URL for tracking events
     public String getEventsEndpoint() {
         return mEventsEndpoint;
     }
 
+    // URLs for tracking events, most preferred first, from a comma separated list in EventsEndpoints.
+    // Each batch goes to the healthiest one that hasn't failed in the last EndpointCooldown
+    // milliseconds. Just EventsEndpoint, if EventsEndpoints isn't set.
+    public String[] getEventsEndpoints() {
+        if (null == mEventsEndpoints) {
+            return new String[] { getEventsEndpoint() };
+        }
+        return mEventsEndpoints.clone();
+    }
+
+    // Milliseconds an endpoint in EventsEndpoints is passed over after a request to it fails
+    public int getEndpointCooldown() {
+        return mEndpointCooldown;
+    }
+
+    // Bounds in milliseconds on how long to wait for an endpoint to answer. The timeouts in
+    // between are worked out from how long each endpoint has taken to answer so far.
+    public int getMinRequestTimeout() {
+        return mMinRequestTimeout;
+    }
+
+    public int getMaxRequestTimeout() {
+        return mMaxRequestTimeout;
+    }
+
+    // How events are sent to the events endpoint. UPLOAD_FORMAT_FORM (the default) posts a form
+    // with the token in "code" and the Base64 encoded events in "data". UPLOAD_FORMAT_JSON posts
+    // the events as an application/json body, with the token in an X-Logbook-Token header.
+    public String getEventsEndpointFormat() {
+        return mEventsEndpointFormat;
+    }
+
+    // URL accepting the batch payload format (see BatchEnvelope), where properties shared
+    // by all events in a batch are sent once. If null, batches are sent to the events
+    // endpoint as a plain array of events.
+    public String getBatchEndpoint() {
+        return mBatchEndpoint;
+    }
+
+    // How batches are sent to the batch endpoint, as for getEventsEndpointFormat()
+    public String getBatchEndpointFormat() {
+        return mBatchEndpointFormat;
+    }
+
+    // If true, event data is encoded as it is written to the connection, instead of
+    // building the whole encoded request in memory before sending it.
+    public boolean getStreamingUpload() {
+        return mStreamingUpload;
+    }
+
+    // Where uploads go. TRANSPORT_HTTP (the default) sends them to the endpoints above.
+    // TRANSPORT_FILE appends the events to TransportFile as newline delimited JSON, and
+    // TRANSPORT_LOOPBACK sends them to a server inside the app, which answers after
+    // LoopbackLatency milliseconds and fails LoopbackErrorPercent percent of them.
+    // The last two are for testing and measurement, and never send anything off the device.
+    public String getTransport() {
+        return mTransport;
+    }
+
+    // A file name in the app's files directory
+    public String getTransportFile() {
+        return mTransportFile;
+    }
+
+    public int getLoopbackLatency() {
+        return mLoopbackLatency;
+    }
+
+    public int getLoopbackErrorPercent() {
+        return mLoopbackErrorPercent;
+    }
+
+    // Content coding for request bodies, "gzip" or "deflate", or null to send them uncompressed.
+    // Endpoints that reject compressed requests are sent uncompressed ones from then on.
+    public String getRequestCompression() {
+        return mRequestCompression;
+    }
+
+    // SQLite synchronous level for the events database, one of "OFF", "NORMAL" or "FULL".
+    // NORMAL is durable across app crashes when write-ahead logging is in use; FULL
+    // also survives power loss, at the cost of an fsync on every commit.
+    public String getDatabaseSynchronous() {
+        return mDatabaseSynchronous;
+    }
+
     ///////////////////////////////////////////////
 
+    // Returns null if list has no URLs in it
+    private static String[] readEndpointList(String list) {
+        final List<String> ret = new ArrayList<String>();
+        for (final String url : list.split(",")) {
+            final String trimmed = url.trim();
+            if (trimmed.length() != 0) {
+                ret.add(trimmed);
+            }
+        }
+        if (ret.isEmpty()) {
+            Log.w(LOGTAG, "No URLs in EventsEndpoints, using EventsEndpoint");
+            return null;
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    private static String readUploadFormat(Bundle metaData, String key) {
+        final String format = metaData.getString("net.p_lucky.logbk.android.LBConfig." + key);
+        if (null == format) {
+            return UPLOAD_FORMAT_FORM;
+        }
+
+        final String lowerFormat = format.toLowerCase(Locale.US);
+        if (! UPLOAD_FORMAT_FORM.equals(lowerFormat) && ! UPLOAD_FORMAT_JSON.equals(lowerFormat)) {
+            Log.w(LOGTAG, "Unknown " + key + " value " + format + ", using " + UPLOAD_FORMAT_FORM);
+            return UPLOAD_FORMAT_FORM;
+        }
+        return lowerFormat;
+    }
+
     // Package access for testing only- do not call directly in library code
     /* package */ static LBConfig readConfig(Context appContext) {
         final String packageName = appContext.getPackageName();
@@ -92,7 +389,34 @@ public class LBConfig {
     private final int mBulkUploadLimit;
     private final int mFlushInterval;
     private final int mDataExpiration;
+    private final int mMaxBatchBytes;
+    private final int mFlushTimeBudget;
+    private final int mFlushByteBudget;
+    private final int mRetryBaseDelay;
+    private final int mRetryMaxDelay;
+    private final int mCircuitBreakerThreshold;
+    private final int mCircuitBreakerCooldown;
+    private final int mMaxEventAttempts;
+    private final int mUploadConcurrency;
+    private final int mUploadPrefetchDepth;
+    private final int mMeteredBacklogLimit;
+    private final boolean mUseJobScheduler;
+    private final int mFlushJobWindow;
     private final String mEventsEndpoint;
+    private final String[] mEventsEndpoints;
+    private final int mEndpointCooldown;
+    private final int mMinRequestTimeout;
+    private final int mMaxRequestTimeout;
+    private final String mEventsEndpointFormat;
+    private final String mBatchEndpoint;
+    private final String mBatchEndpointFormat;
+    private final boolean mStreamingUpload;
+    private final String mTransport;
+    private final String mTransportFile;
+    private final int mLoopbackLatency;
+    private final int mLoopbackErrorPercent;
+    private final String mRequestCompression;
+    private final String mDatabaseSynchronous;
 
     private static LBConfig sInstance;
     private static final Object sInstanceLock = new Object();
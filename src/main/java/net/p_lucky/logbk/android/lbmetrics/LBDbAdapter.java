@@ -1,17 +1,24 @@
 package net.p_lucky.logbk.android.lbmetrics;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentValues;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -20,6 +27,9 @@ import android.util.Log;
  * <p>Not thread-safe. Instances of this class should only be used
  * by a single thread.
  *
+ * <p>The database is opened on first use and kept open, along with the
+ * statements compiled against it, until {@link #close()} or {@link #deleteDB()}.
+ *
  */
 class LBDbAdapter {
     private static final String LOGTAG = "LogbookAPI";
@@ -39,15 +49,56 @@ class LBDbAdapter {
     }
 
     private static final String DATABASE_NAME = "logbook";
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 7;
 
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
+    public static final String KEY_FORMAT = "format";
+    public static final String KEY_ATTEMPTS = "attempts";
+    public static final String KEY_QUARANTINED_AT = "quarantined_at";
+
+    // Values of KEY_FORMAT. Rows from DATABASE_VERSION 4 and earlier are all JSON text
+    private static final int FORMAT_JSON = 0;
+    private static final int FORMAT_BINARY = 1; // EventCodec
+
+    private static final String DICTIONARY_TABLE = "dictionary";
+
+    // Events the server refused too many times, kept out of the way of the rest of the
+    // queue until they expire, so they can still be looked at
+    private static final String QUARANTINE_TABLE = "quarantine";
+
+    // Settings that belong with the rows in this database, like the idempotency key prefix
+    private static final String METADATA_TABLE = "metadata";
+    private static final String KEY_IDEMPOTENCY_KEY_PREFIX = "idempotency_key_prefix";
+
+    // The first and last ids of batches that may have reached the server, and haven't been dealt with yet
+    private static final String SENT_BATCHES_TABLE = "sent_batches";
+    private static final int MAX_DICTIONARY_TERMS = 4096;
+
+    // Upper bound on the rows read for one batch, however small they are
+    private static final int MAX_BATCH_ROWS = 1000;
+    private static final int MAX_IDS_PER_STATEMENT = 500;
 
     private static final String CREATE_EVENTS_TABLE =
        "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
-        KEY_CREATED_AT + " INTEGER NOT NULL);";
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_FORMAT + " INTEGER NOT NULL DEFAULT " + FORMAT_JSON + ", " +
+        KEY_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0);";
+    private static final String CREATE_DICTIONARY_TABLE =
+       "CREATE TABLE " + DICTIONARY_TABLE + " (_id INTEGER PRIMARY KEY, term TEXT NOT NULL);";
+    private static final String CREATE_QUARANTINE_TABLE =
+       "CREATE TABLE " + QUARANTINE_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        KEY_DATA + " STRING NOT NULL, " +
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_FORMAT + " INTEGER NOT NULL, " +
+        KEY_ATTEMPTS + " INTEGER NOT NULL, " +
+        KEY_QUARANTINED_AT + " INTEGER NOT NULL);";
+    private static final String CREATE_METADATA_TABLE =
+       "CREATE TABLE " + METADATA_TABLE + " (key TEXT PRIMARY KEY, value TEXT NOT NULL);";
+    private static final String CREATE_SENT_BATCHES_TABLE =
+       "CREATE TABLE " + SENT_BATCHES_TABLE + " (first_id INTEGER PRIMARY KEY, last_id INTEGER NOT NULL);";
+    private static final String SUM_DATA_BYTES = "IFNULL(SUM(LENGTH(CAST(" + KEY_DATA + " AS BLOB))), 0)";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
@@ -61,11 +112,15 @@ class LBDbAdapter {
         }
 
         /**
-         * Completely deletes the DB file from the file system.
+         * Completely deletes the DB file, and any journal or write-ahead log
+         * belonging to it, from the file system.
          */
         public void deleteDatabase() {
             close();
             mDatabaseFile.delete();
+            new File(mDatabaseFile.getPath() + "-journal").delete();
+            new File(mDatabaseFile.getPath() + "-wal").delete();
+            new File(mDatabaseFile.getPath() + "-shm").delete();
         }
 
         @Override
@@ -74,26 +129,109 @@ class LBDbAdapter {
 
             db.execSQL(CREATE_EVENTS_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
+            db.execSQL(CREATE_DICTIONARY_TABLE);
+            db.execSQL(CREATE_QUARANTINE_TABLE);
+            db.execSQL(CREATE_METADATA_TABLE);
+            db.execSQL(CREATE_SENT_BATCHES_TABLE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion >= 4) {
+                // Version 4 and later rows can all still be read. Keep them.
+                if (oldVersion == 4) {
+                    if (LBConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding binary events to Logbook events DB");
+
+                    db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " +
+                            KEY_FORMAT + " INTEGER NOT NULL DEFAULT " + FORMAT_JSON);
+                    db.execSQL(CREATE_DICTIONARY_TABLE);
+                }
+                if (oldVersion <= 5) {
+                    if (LBConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding event quarantine to Logbook events DB");
+
+                    db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " +
+                            KEY_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL(CREATE_QUARANTINE_TABLE);
+                }
+                if (oldVersion <= 6) {
+                    if (LBConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, adding upload state to Logbook events DB");
+
+                    db.execSQL(CREATE_METADATA_TABLE);
+                    db.execSQL(CREATE_SENT_BATCHES_TABLE);
+                }
+                return;
+            }
+
             if (LBConfig.DEBUG) Log.d(LOGTAG, "Upgrading app, replacing Logbook events DB");
 
             db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
+            db.execSQL("DROP TABLE IF EXISTS " + DICTIONARY_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + QUARANTINE_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + METADATA_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + SENT_BATCHES_TABLE);
             db.execSQL(CREATE_EVENTS_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
+            db.execSQL(CREATE_DICTIONARY_TABLE);
+            db.execSQL(CREATE_QUARANTINE_TABLE);
+            db.execSQL(CREATE_METADATA_TABLE);
+            db.execSQL(CREATE_SENT_BATCHES_TABLE);
         }
 
         private final File mDatabaseFile;
     }
 
+    // Statements we run for every event or flush, compiled once per open database,
+    // and the size of the table. The size is read once when the database is opened
+    // and then kept up to date by every insert and delete made through this adapter.
+    private static class TableState {
+        TableState(SQLiteDatabase db, Table table) {
+            final String tableName = table.getName();
+            insert = db.compileStatement("INSERT INTO " + tableName +
+                    " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_FORMAT + ") VALUES (?, ?, " + FORMAT_BINARY + ")");
+            deleteThroughId = db.compileStatement("DELETE FROM " + tableName + " WHERE _id <= ?");
+            deleteBeforeTime = db.compileStatement("DELETE FROM " + tableName + " WHERE " + KEY_CREATED_AT + " <= ?");
+
+            final long[] size = querySize(db, "SELECT COUNT(*), " + SUM_DATA_BYTES + " FROM " + tableName, null);
+            rowCount = size[0];
+            storedBytes = size[1];
+        }
+
+        public void close() {
+            insert.close();
+            deleteThroughId.close();
+            deleteBeforeTime.close();
+        }
+
+        public final SQLiteStatement insert;
+        public final SQLiteStatement deleteThroughId;
+        public final SQLiteStatement deleteBeforeTime;
+        public long rowCount;
+        public long storedBytes;
+    }
+
     public LBDbAdapter(Context context) {
         this(context, DATABASE_NAME);
     }
 
     public LBDbAdapter(Context context, String dbName) {
         mDb = new LBDatabaseHelper(context, dbName);
+        mTableStates = new EnumMap<Table, TableState>(Table.class);
+        mSynchronousMode = LBConfig.DEFAULT_DATABASE_SYNCHRONOUS;
+    }
+
+    /**
+     * Sets the SQLite synchronous level ("OFF", "NORMAL" or "FULL") used by this adapter.
+     * Takes effect immediately if the database is already open.
+     */
+    public void setSynchronousMode(String synchronousMode) {
+        mSynchronousMode = synchronousMode;
+        if (null != mDatabase) {
+            try {
+                mDatabase.execSQL("PRAGMA synchronous = " + mSynchronousMode);
+            } catch (final SQLiteException e) {
+                Log.e(LOGTAG, "Can't set synchronous mode " + synchronousMode, e);
+            }
+        }
     }
 
     /**
@@ -104,39 +242,56 @@ class LBDbAdapter {
      * @return the number of rows in the table, or -1 on failure
      */
     public int addJSON(JSONObject j, Table table) {
-        final String tableName = table.getName();
+        return addJSONBatch(Collections.singletonList(j), table);
+    }
 
-        Cursor c = null;
+    /**
+     * Adds several JSON events to the SQLiteDatabase in a single transaction,
+     * so a burst of events costs one commit instead of one per event.
+     * @param batch the JSON objects to record, in order
+     * @param table the table to insert into "events"
+     * @return the number of rows in the table, or -1 on failure
+     */
+    public int addJSONBatch(List<JSONObject> batch, Table table) {
+        final String tableName = table.getName();
         int count = -1;
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            db.insert(tableName, null, cv);
+            final TableState state = getTableState(table);
+            final SQLiteDatabase db = mDatabase;
+            final long now = System.currentTimeMillis();
+            long addedBytes = 0;
+
+            db.beginTransaction();
+            try {
+                final int size = batch.size();
+                for (int i = 0; i < size; i++) {
+                    final byte[] data;
+                    try {
+                        data = mCodec.encode(batch.get(i));
+                    } catch (final JSONException e) {
+                        // Can't happen for objects that came from JSONObject in the first place
+                        throw new RuntimeException("Event can't be encoded", e);
+                    }
+                    state.insert.bindBlob(1, data);
+                    state.insert.bindLong(2, now);
+                    state.insert.executeInsert();
+                    addedBytes += data.length;
+                }
+                insertNewTerms();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            state.rowCount += batch.size();
+            state.storedBytes += addedBytes;
 
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName, null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            count = (int) state.rowCount;
         } catch (final SQLiteException e) {
-            Log.e(LOGTAG, "addJSON " + tableName + " FAILED. Deleting DB.", e);
+            Log.e(LOGTAG, "addJSONBatch " + tableName + " FAILED. Deleting DB.", e);
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-            mDb.deleteDatabase();
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-            mDb.close();
+            // See addJSON- we assume the DB is unusable after a SQL exception.
+            deleteDB();
         }
         return count;
     }
@@ -150,8 +305,14 @@ class LBDbAdapter {
         final String tableName = table.getName();
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, "_id <= " + last_id, null);
+            final TableState state = getTableState(table);
+            final String[] args = { last_id };
+            final long[] removed = querySize(mDatabase, "SELECT COUNT(*), " + SUM_DATA_BYTES +
+                    " FROM " + tableName + " WHERE _id <= ?", args);
+            state.deleteThroughId.bindLong(1, Long.parseLong(last_id));
+            state.deleteThroughId.execute();
+            state.rowCount -= removed[0];
+            state.storedBytes -= removed[1];
         } catch (final SQLiteException e) {
             Log.e(LOGTAG, "cleanupEvents " + tableName + " by id FAILED. Deleting DB.", e);
 
@@ -159,9 +320,138 @@ class LBDbAdapter {
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
-        } finally {
-            mDb.close();
+            deleteDB();
+        }
+    }
+
+    /**
+     * Removes the events with the given ids from table.
+     * @param ids the ids of the rows to delete
+     * @param count how many of ids to use, starting at the first
+     * @param table the table to remove events from "events"
+     */
+    public void cleanupEvents(long[] ids, int count, Table table) {
+        final String tableName = table.getName();
+
+        try {
+            final TableState state = getTableState(table);
+            final StringBuilder idList = new StringBuilder();
+            mDatabase.beginTransaction();
+            try {
+                for (int start = 0; start < count; start += MAX_IDS_PER_STATEMENT) {
+                    final String where = " FROM " + tableName + " WHERE _id IN (" + idList(idList, ids, start, count) + ")";
+                    final long[] removed = querySize(mDatabase, "SELECT COUNT(*), " + SUM_DATA_BYTES + where, null);
+                    mDatabase.execSQL("DELETE" + where);
+                    state.rowCount -= removed[0];
+                    state.storedBytes -= removed[1];
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "cleanupEvents " + tableName + " by id set FAILED. Deleting DB.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            deleteDB();
+        }
+    }
+
+    /**
+     * Counts one more failed attempt to send each of the given events.
+     * @param ids the ids of the rows that were sent
+     * @param count how many of ids to use, starting at the first
+     * @param table the table the events are in "events"
+     */
+    public void recordAttempts(long[] ids, int count, Table table) {
+        final String tableName = table.getName();
+
+        try {
+            getTableState(table);
+            final StringBuilder idList = new StringBuilder();
+            mDatabase.beginTransaction();
+            try {
+                for (int start = 0; start < count; start += MAX_IDS_PER_STATEMENT) {
+                    mDatabase.execSQL("UPDATE " + tableName + " SET " + KEY_ATTEMPTS + " = " + KEY_ATTEMPTS + " + 1" +
+                            " WHERE _id IN (" + idList(idList, ids, start, count) + ")");
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "recordAttempts " + tableName + " FAILED. Deleting DB.", e);
+
+            // See cleanupEvents- we assume the DB is unusable after a SQL exception.
+            deleteDB();
+        }
+    }
+
+    /**
+     * Moves the given events out of table and into the quarantine, where they
+     * won't be read again. They are deleted by {@link #cleanupQuarantine(long)}.
+     * @param ids the ids of the rows to move
+     * @param count how many of ids to use, starting at the first
+     * @param table the table to move events from "events"
+     */
+    public void quarantineEvents(long[] ids, int count, Table table) {
+        final String tableName = table.getName();
+
+        try {
+            final TableState state = getTableState(table);
+            final StringBuilder idList = new StringBuilder();
+            final long now = System.currentTimeMillis();
+            mDatabase.beginTransaction();
+            try {
+                for (int start = 0; start < count; start += MAX_IDS_PER_STATEMENT) {
+                    final String where = " FROM " + tableName + " WHERE _id IN (" + idList(idList, ids, start, count) + ")";
+                    final long[] removed = querySize(mDatabase, "SELECT COUNT(*), " + SUM_DATA_BYTES + where, null);
+                    mDatabase.execSQL("INSERT INTO " + QUARANTINE_TABLE +
+                            " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_FORMAT + ", " + KEY_ATTEMPTS + ", " + KEY_QUARANTINED_AT + ")" +
+                            " SELECT " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_FORMAT + ", " + KEY_ATTEMPTS + ", " + now + where);
+                    mDatabase.execSQL("DELETE" + where);
+                    state.rowCount -= removed[0];
+                    state.storedBytes -= removed[1];
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "quarantineEvents " + tableName + " FAILED. Deleting DB.", e);
+
+            // See cleanupEvents- we assume the DB is unusable after a SQL exception.
+            deleteDB();
+        }
+    }
+
+    /**
+     * Removes quarantined events created before time.
+     * @param time the unix epoch in milliseconds to remove events before
+     */
+    public void cleanupQuarantine(long time) {
+        try {
+            getDatabase().delete(QUARANTINE_TABLE, KEY_CREATED_AT + " <= ?", new String[] { Long.toString(time) });
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "cleanupQuarantine FAILED. Deleting DB.", e);
+
+            // See cleanupEvents- we assume the DB is unusable after a SQL exception.
+            deleteDB();
+        }
+    }
+
+    /**
+     * @return the number of quarantined events, or -1 on failure
+     */
+    public int getQuarantineDepth() {
+        try {
+            return (int) querySize(getDatabase(), "SELECT COUNT(*), 0 FROM " + QUARANTINE_TABLE, null)[0];
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "getQuarantineDepth FAILED.", e);
+            return -1;
         }
     }
 
@@ -174,8 +464,14 @@ class LBDbAdapter {
         final String tableName = table.getName();
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            final TableState state = getTableState(table);
+            final String[] args = { Long.toString(time) };
+            final long[] removed = querySize(mDatabase, "SELECT COUNT(*), " + SUM_DATA_BYTES +
+                    " FROM " + tableName + " WHERE " + KEY_CREATED_AT + " <= ?", args);
+            state.deleteBeforeTime.bindLong(1, time);
+            state.deleteBeforeTime.execute();
+            state.rowCount -= removed[0];
+            state.storedBytes -= removed[1];
         } catch (final SQLiteException e) {
             Log.e(LOGTAG, "cleanupEvents " + tableName + " by time FAILED. Deleting DB.", e);
 
@@ -183,17 +479,155 @@ class LBDbAdapter {
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
-        } finally {
-            mDb.close();
+            deleteDB();
+        }
+    }
+
+    /**
+     * Returns the number of events waiting in table, without touching the database
+     * unless it hasn't been opened yet.
+     * @param table the table to count "events"
+     * @return the number of rows in the table, or -1 on failure
+     */
+    public int getQueueDepth(Table table) {
+        try {
+            return (int) getTableState(table).rowCount;
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "getQueueDepth " + table.getName() + " FAILED.", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the total size in bytes of the stored event data waiting in table.
+     * Like getQueueDepth, this is kept in memory and doesn't scan the table.
+     * @param table the table to measure "events"
+     * @return the number of bytes in the table, or -1 on failure
+     */
+    public long getStoredBytes(Table table) {
+        try {
+            return getTableState(table).storedBytes;
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "getStoredBytes " + table.getName() + " FAILED.", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the start of the idempotency keys of batches read from this database. It is
+     * made the first time it's asked for and kept in the database, so a batch sent again
+     * after the process restarts has the same key as before, while a new database, whose
+     * row ids start again from 1, gets a new prefix.
+     * @return the prefix. If it can't be stored, one that lasts until the database is closed.
+     */
+    public String getIdempotencyKeyPrefix() {
+        if (null != mIdempotencyKeyPrefix) {
+            return mIdempotencyKeyPrefix;
+        }
+
+        final String newPrefix = UUID.randomUUID().toString().replaceAll("-", "");
+        try {
+            final SQLiteDatabase db = getDatabase();
+            final String[] args = { KEY_IDEMPOTENCY_KEY_PREFIX, newPrefix };
+            db.execSQL("INSERT OR IGNORE INTO " + METADATA_TABLE + " (key, value) VALUES (?, ?)", args);
+            final Cursor c = db.rawQuery("SELECT value FROM " + METADATA_TABLE + " WHERE key = ?", new String[] { KEY_IDEMPOTENCY_KEY_PREFIX });
+            try {
+                mIdempotencyKeyPrefix = c.moveToFirst() ? c.getString(0) : newPrefix;
+            } finally {
+                c.close();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "getIdempotencyKeyPrefix FAILED.", e);
+            mIdempotencyKeyPrefix = newPrefix;
         }
+        return mIdempotencyKeyPrefix;
+    }
+
+    /**
+     * Records that the batch of rows with ids from firstId to lastId is being sent, so if the
+     * process dies before it hears back, it can send exactly the same batch again. Replaces
+     * any batch recorded with a first id in that range.
+     */
+    public void recordSentBatch(long firstId, long lastId) {
+        try {
+            final SQLiteDatabase db = getDatabase();
+            db.beginTransaction();
+            try {
+                deleteSentBatches(db, firstId, lastId);
+                db.execSQL("INSERT INTO " + SENT_BATCHES_TABLE + " (first_id, last_id) VALUES (" + firstId + ", " + lastId + ")");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "recordSentBatch FAILED. Deleting DB.", e);
+
+            // See cleanupEvents- we assume the DB is unusable after a SQL exception.
+            deleteDB();
+        }
+    }
+
+    /**
+     * Forgets the batches recorded by recordSentBatch with a first id from firstId to lastId,
+     * once the server has answered for them, or their rows are gone.
+     */
+    public void clearSentBatches(long firstId, long lastId) {
+        try {
+            deleteSentBatches(getDatabase(), firstId, lastId);
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "clearSentBatches FAILED. Deleting DB.", e);
+
+            // See cleanupEvents- we assume the DB is unusable after a SQL exception.
+            deleteDB();
+        }
+    }
+
+    /**
+     * @return the first and last ids of each batch recorded by recordSentBatch and not cleared
+     *     since, oldest first. Empty on failure.
+     */
+    public List<long[]> readSentBatches() {
+        final List<long[]> ret = new ArrayList<long[]>();
+        try {
+            final Cursor c = getDatabase().rawQuery("SELECT first_id, last_id FROM " + SENT_BATCHES_TABLE + " ORDER BY first_id", null);
+            try {
+                while (c.moveToNext()) {
+                    ret.add(new long[] { c.getLong(0), c.getLong(1) });
+                }
+            } finally {
+                c.close();
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "readSentBatches FAILED.", e);
+            ret.clear();
+        }
+        return ret;
+    }
+
+    /**
+     * Releases the compiled statements and closes the database. The adapter
+     * can still be used afterwards- the database will be opened again on demand.
+     */
+    public void close() {
+        for (final TableState statements : mTableStates.values()) {
+            statements.close();
+        }
+        mTableStates.clear();
+        if (null != mInsertTerm) {
+            mInsertTerm.close();
+            mInsertTerm = null;
+        }
+        mCodec = null;
+        mIdempotencyKeyPrefix = null;
+        mDatabase = null;
+        mDb.close();
     }
 
     public void deleteDB() {
+        close();
         mDb.deleteDatabase();
     }
 
-
     /**
      * Returns the data string to send to Logbook and the maximum ID of the row that
      * we're sending, so we know what rows to delete when a track request was successful.
@@ -203,52 +637,257 @@ class LBDbAdapter {
      * representing the events, or null if none could be successfully retrieved.
      */
     public String[] generateDataString(Table table) {
+        final EventBatch batch = new EventBatch();
+        if (readBatch(table, batch)) {
+            final String[] ret = { Long.toString(batch.getLastId()), batch.getPayload().toString() };
+            return ret;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the oldest events in table into batch, up to the default batch size.
+     *
+     * @see #readBatch(Table, EventBatch, int, int, long, long)
+     */
+    public boolean readBatch(Table table, EventBatch batch) {
+        return readBatch(table, batch, LBConfig.DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Reads the oldest events in table into batch, up to maxBytes.
+     *
+     * @see #readBatch(Table, EventBatch, int, int, long, long)
+     */
+    public boolean readBatch(Table table, EventBatch batch, int maxBytes) {
+        return readBatch(table, batch, maxBytes, MAX_BATCH_ROWS);
+    }
+
+    /**
+     * Reads the oldest events in table into batch, up to maxBytes or maxRows.
+     *
+     * @see #readBatch(Table, EventBatch, int, int, long, long)
+     */
+    public boolean readBatch(Table table, EventBatch batch, int maxBytes, int maxRows) {
+        return readBatch(table, batch, maxBytes, maxRows, -1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the oldest events in table with ids in (afterId, throughId] into batch, as a JSON array.
+     * Ids only ever go up, so the oldest events are the ones with the lowest ids.
+     *
+     * <p>Events are added until the next one would take the payload past maxBytes
+     * characters (which is its size in bytes for the mostly ASCII events we send), or
+     * maxRows (at most {@value #MAX_BATCH_ROWS}) rows have been read. The first event is always added,
+     * however large it is, so an oversized event can't hold up the rest of the queue.
+     *
+     * <p>Stored JSON is copied into the batch as it is, after a cheap check that it
+     * looks like an object, and binary rows are written out as JSON text directly,
+     * so no rows are parsed into JSONObjects. Rows that can't be read are skipped
+     * and deleted, so a batch that is only partly acknowledged can't leave them behind.
+     *
+     * @param table the table to read the JSON from "events"
+     * @param batch cleared, then filled with the events and the id of the last row read
+     * @param maxBytes the payload size to stop at
+     * @param maxRows the number of rows to stop at
+     * @param afterId only read rows after this id
+     * @param throughId only read rows up to and including this id
+     * @return true if batch holds at least one event. If not, the last id in batch is still set if
+     *     there were rows to read, which were all unreadable (and have been deleted).
+     */
+    public boolean readBatch(Table table, EventBatch batch, int maxBytes, int maxRows, long afterId, long throughId) {
         Cursor c = null;
-        String data = null;
-        String last_id = null;
         final String tableName = table.getName();
+        batch.clear();
 
-        try {
-            final SQLiteDatabase db = mDb.getReadableDatabase();
-            c = db.rawQuery("SELECT * FROM " + tableName  +
-                    " ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50", null);
-            final JSONArray arr = new JSONArray();
+        if (getQueueDepth(table) == 0) {
+            return false;
+        }
 
+        try {
+            final SQLiteDatabase db = getDatabase();
+            final String[] args = { Long.toString(afterId), Long.toString(throughId) };
+            c = db.rawQuery("SELECT _id, " + KEY_DATA + ", " + KEY_FORMAT + ", " + KEY_ATTEMPTS + " FROM " + tableName  +
+                    " WHERE _id > ? AND _id <= ? ORDER BY _id ASC LIMIT " + Math.max(1, Math.min(maxRows, MAX_BATCH_ROWS)), args);
+            final StringBuilder out = batch.getPayloadBuilder();
+            out.append('[');
+
+            long lastId = -1;
+            long[] junkIds = null;
+            int junkCount = 0;
             while (c.moveToNext()) {
-                if (c.isLast()) {
-                    last_id = c.getString(c.getColumnIndex("_id"));
+                final long id = c.getLong(0);
+                final int rowStart = out.length();
+                if (batch.size() > 0) {
+                    out.append(',');
+                }
+
+                boolean appended = false;
+                if (c.getInt(2) == FORMAT_BINARY) {
+                    try {
+                        mCodec.appendJson(c.getBlob(1), out);
+                        appended = true;
+                    } catch (final JSONException e) {
+                        Log.e(LOGTAG, "Skipping unreadable event " + id + " in " + tableName, e);
+                    }
+                } else {
+                    final String json = c.getString(1);
+                    if (looksLikeJSONObject(json)) {
+                        out.append(json);
+                        appended = true;
+                    }
+                }
+
+                if (appended && batch.size() > 0 && out.length() + 1 > maxBytes) {
+                    // Leave this one for the next batch (the + 1 is the closing bracket)
+                    out.setLength(rowStart);
+                    break;
                 }
-                try {
-                    final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+
+                lastId = id;
+                if (appended) {
+                    batch.addRow(id, c.getInt(3));
+                } else {
+                    out.setLength(rowStart);
+                    if (null == junkIds) {
+                        junkIds = new long[MAX_BATCH_ROWS];
+                    }
+                    junkIds[junkCount++] = id;
                 }
             }
+            out.append(']');
+            batch.setLastId(lastId);
 
-            if (arr.length() > 0) {
-                data = arr.toString();
+            if (junkCount > 0) {
+                cleanupEvents(junkIds, junkCount, table);
             }
         } catch (final SQLiteException e) {
-            Log.e(LOGTAG, "generateDataString " + tableName, e);
+            Log.e(LOGTAG, "readBatch " + tableName, e);
 
             // We'll dump the DB on write failures, but with reads we can
             // let things ride in hopes the issue clears up.
-            // (A bit more likely, since we're opening the DB for read and not write.)
             // A corrupted or disk-full DB will be cleaned up on the next write or clear call.
-            last_id = null;
-            data = null;
+            batch.clear();
         } finally {
-            mDb.close();
             if (c != null) {
                 c.close();
             }
         }
 
-        if (last_id != null && data != null) {
-            final String[] ret = {last_id, data};
-            return ret;
+        return ! batch.isEmpty();
+    }
+
+    // Opens the database on first use and keeps it open until close() or deleteDB()
+    private SQLiteDatabase getDatabase() {
+        if (null == mDatabase) {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            enableWriteAheadLogging(db);
+            db.execSQL("PRAGMA synchronous = " + mSynchronousMode);
+            mCodec = readDictionary(db);
+            mInsertTerm = db.compileStatement("INSERT INTO " + DICTIONARY_TABLE + " (_id, term) VALUES (?, ?)");
+            mDatabase = db;
         }
-        return null;
+        return mDatabase;
     }
+
+    private static void deleteSentBatches(SQLiteDatabase db, long firstId, long lastId) {
+        db.execSQL("DELETE FROM " + SENT_BATCHES_TABLE + " WHERE first_id BETWEEN " + firstId + " AND " + lastId);
+    }
+
+    private static EventCodec readDictionary(SQLiteDatabase db) {
+        final EventCodec ret = new EventCodec(MAX_DICTIONARY_TERMS);
+        final Cursor c = db.rawQuery("SELECT _id, term FROM " + DICTIONARY_TABLE + " ORDER BY _id", null);
+        try {
+            while (c.moveToNext()) {
+                final int id = c.getInt(0);
+                if (id != ret.getTermCount()) {
+                    // Rows that use the missing terms can't be decoded.
+                    throw new SQLiteException("Logbook events DB dictionary is missing term " + ret.getTermCount());
+                }
+                ret.addTerm(id, c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return ret;
+    }
+
+    // Stores the terms mCodec created while encoding. Must be called in the same
+    // transaction as the inserts of the rows that use them.
+    private void insertNewTerms() {
+        final List<String> newTerms = mCodec.takeNewTerms();
+        int id = mCodec.getTermCount() - newTerms.size();
+        for (final String term : newTerms) {
+            mInsertTerm.bindLong(1, id);
+            mInsertTerm.bindString(2, term);
+            mInsertTerm.executeInsert();
+            id++;
+        }
+    }
+
+    private TableState getTableState(Table table) {
+        final SQLiteDatabase db = getDatabase();
+        TableState ret = mTableStates.get(table);
+        if (null == ret) {
+            ret = new TableState(db, table);
+            mTableStates.put(table, ret);
+        }
+        return ret;
+    }
+
+    private static boolean looksLikeJSONObject(String s) {
+        if (null == s) {
+            return false;
+        }
+        final String trimmed = s.trim();
+        return trimmed.length() >= 2 && trimmed.charAt(0) == '{' && trimmed.charAt(trimmed.length() - 1) == '}';
+    }
+
+    // Appends ids[start] to ids[min(start + MAX_IDS_PER_STATEMENT, count) - 1] to idList, which is
+    // cleared first, separated by commas. Ids are numbers, so they can go in the SQL as they are
+    // rather than as arguments, which SQLite limits to 999 per statement.
+    private static StringBuilder idList(StringBuilder idList, long[] ids, int start, int count) {
+        idList.setLength(0);
+        final int end = Math.min(count, start + MAX_IDS_PER_STATEMENT);
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                idList.append(',');
+            }
+            idList.append(ids[i]);
+        }
+        return idList;
+    }
+
+    // Returns { COUNT(*), SUM_DATA_BYTES } from a query for those two columns
+    private static long[] querySize(SQLiteDatabase db, String query, String[] args) {
+        final long[] ret = new long[2];
+        final Cursor c = db.rawQuery(query, args);
+        try {
+            if (c.moveToFirst()) {
+                ret[0] = c.getLong(0);
+                ret[1] = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+        return ret;
+    }
+
+    // With a write-ahead log, commits append to the log instead of rewriting
+    // the database and its rollback journal, and readers don't block the writer.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            if (! db.enableWriteAheadLogging()) {
+                if (LBConfig.DEBUG) Log.d(LOGTAG, "Write-ahead logging is not available for the Logbook events DB");
+            }
+        }
+    }
+
+    private final Map<Table, TableState> mTableStates;
+    private SQLiteDatabase mDatabase;
+    private EventCodec mCodec;
+    private SQLiteStatement mInsertTerm;
+    private String mIdempotencyKeyPrefix; // Cached until close()
+    private String mSynchronousMode;
 }
@@ -2,10 +2,6 @@ package net.p_lucky.logbk.android.lbmetrics;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
-
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -20,7 +16,8 @@ import java.util.concurrent.Future;
  * application.
  *
  * <p>Once you have an instance, you can send events to Logbook
- * using {@link #track(String)}
+ * using {@link #track(String)}, or {@link #track(EventBuilder)} for events
+ * with properties.
  *
  * <p>The Logbook library will periodically send information to
  * Logbook servers, so your application will need to have
@@ -172,19 +169,39 @@ public class LogbookAPI {
     // This MAY CHANGE IN FUTURE RELEASES, so minimize code that assumes thread safety
     // (and perhaps document that code here).
     public void track(String eventName) {
-        try {
-            final JSONObject messageProps = new JSONObject();
+        track(EventBuilder.obtain(eventName));
+    }
 
-            final long time = System.currentTimeMillis() / 1000;
-            messageProps.put("time", time);
-            messageProps.put("randUser", getDistinctId());
+    /**
+     * Track an event with properties.
+     *
+     * <p>Like {@link #track(String)}, but sends the properties set on the given builder
+     * along with the event. After this call the builder belongs to the library, and
+     * should not be used again.
+     *
+     * @param event The event to send, usually from {@link #newEvent(String)}
+     */
+    // DO NOT DOCUMENT, but track() must be thread safe since it is used to track events in
+    // notifications from the UI thread, which might not be our LogbookAPI "home" thread.
+    // This MAY CHANGE IN FUTURE RELEASES, so minimize code that assumes thread safety
+    // (and perhaps document that code here).
+    public void track(EventBuilder event) {
+        event.put("time", System.currentTimeMillis() / 1000);
+        event.put("randUser", getDistinctId());
+        mMessages.eventsMessage(event);
+    }
 
-            final AnalyticsMessages.EventDescription eventDescription =
-                    new AnalyticsMessages.EventDescription(eventName, messageProps);
-            mMessages.eventsMessage(eventDescription);
-        } catch (final JSONException e) {
-            Log.e(LOGTAG, "Exception tracking event " + eventName, e);
-        }
+    /**
+     * Get an empty event to fill with properties and pass to {@link #track(EventBuilder)}.
+     *
+     * <p>Event builders are pooled and reused, so this is cheap enough to call
+     * from scroll or render callbacks.
+     *
+     * @param eventName The name of the event to send
+     * @return an empty EventBuilder for the named event
+     */
+    public EventBuilder newEvent(String eventName) {
+        return EventBuilder.obtain(eventName);
     }
 
     /**
@@ -305,8 +322,6 @@ public class LogbookAPI {
 
     ////////////////////////////////////////////////////
 
-    private static final String LOGTAG = "LogbookAPI";
-
     private final Context mContext;
     private final AnalyticsMessages mMessages;
     private static String mToken;
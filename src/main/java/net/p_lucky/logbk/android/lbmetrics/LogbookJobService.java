@@ -0,0 +1,76 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Runs flushes that can wait a while when the platform job scheduler says so, rather than
+ * on a timer of our own. The job scheduler runs jobs from every app together when the
+ * network is up anyway, so our uploads don't wake the radio by themselves. Only used
+ * when the UseJobScheduler setting is on, on Lollipop and later.
+ *
+ * <p>Declared in the library's AndroidManifest.xml, so it is merged into the app's.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class LogbookJobService extends JobService {
+
+    /**
+     * Asks for a flush some time between minDelay and maxDelay milliseconds from now,
+     * when there is a network connection (or at maxDelay, whatever happens). Replaces
+     * any flush job already scheduled.
+     *
+     * @return false if the job couldn't be scheduled, so the caller should use a timer of its own
+     */
+    /* package */ static boolean schedule(Context context, long minDelay, long maxDelay) {
+        final JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, LogbookJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(minDelay)
+                .setOverrideDeadline(maxDelay)
+                .build();
+        try {
+            final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            return scheduler.schedule(job) == JobScheduler.RESULT_SUCCESS;
+        } catch (final RuntimeException e) {
+            // Most likely the service is missing from the app's manifest
+            Log.w(LOGTAG, "Can't schedule flushes with the job scheduler, using a timer instead", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (null == LogbookAPI.getToken()) {
+            // Started in a new process the app hasn't set Logbook up in yet. Events
+            // tracked later will schedule another flush.
+            return false;
+        }
+
+        if (LBConfig.DEBUG) Log.d(LOGTAG, "Flush job started");
+        // Until the flush calls back, unless the worker is dead and won't
+        return AnalyticsMessages.getInstance(getApplicationContext()).postToServerFromJob(new Runnable() {
+            @Override
+            public void run() {
+                jobFinished(params, false);
+            }
+        });
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The flush carries on regardless. If the job was stopped before it could
+        // finish, ask for it to be run again.
+        return true;
+    }
+
+    // Job ids are shared with the rest of the app, so this one is picked to be unlikely to collide
+    private static final int JOB_ID = 0x4c42464c;
+
+    private static final String LOGTAG = "LogbookAPI";
+}
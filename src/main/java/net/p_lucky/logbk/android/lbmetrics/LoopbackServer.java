@@ -0,0 +1,215 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, for {@link LoopbackTransport} and
+ * the tests. A {@link Responder} decides how each request is answered. Connections are
+ * kept open until the client asks to close them or the server shuts down, each served
+ * on a thread of its own.
+ */
+/* package */ class LoopbackServer {
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers; // lower case names
+        public final byte[] body;
+
+        public Request(String method, String path, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    public interface Responder {
+        // Returns the status code, and writes the response body to body.
+        // Throwing closes the connection without an answer.
+        int respond(Request request, ByteArrayOutputStream body) throws IOException;
+    }
+
+    /**
+     * Starts the server, on a port picked by the system.
+     */
+    public LoopbackServer(Responder responder) throws IOException {
+        mResponder = responder;
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        final Thread acceptThread = new Thread("net.p_lucky.logbk.android.LoopbackServer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = mSocket.accept();
+                        mConnectionCount.incrementAndGet();
+                        synchronized (mConnections) {
+                            if (mShutdown) {
+                                s.close();
+                                break;
+                            }
+                            mConnections.add(s);
+                        }
+                        final Thread connectionThread = new Thread("net.p_lucky.logbk.android.LoopbackServer connection") {
+                            @Override
+                            public void run() {
+                                serve(s);
+                            }
+                        };
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    }
+                } catch (final IOException e) {
+                    // Closed by shutdown()
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + "/";
+    }
+
+    // Connections accepted so far
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Closes the connections open now, as a server does with idle keep-alive connections.
+     * Clients still holding them find out on their next request.
+     */
+    public void closeConnections() {
+        final List<Socket> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<Socket>(mConnections);
+            mConnections.clear();
+        }
+        for (final Socket s : connections) {
+            try {
+                s.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, and closes the ones open, so their threads end.
+     */
+    public void shutdown() throws IOException {
+        synchronized (mConnections) {
+            mShutdown = true;
+        }
+        mSocket.close();
+        closeConnections();
+    }
+
+    private void serve(Socket s) {
+        try {
+            final DataInputStream in = new DataInputStream(s.getInputStream());
+            final OutputStream out = s.getOutputStream();
+            while (handle(in, out)) {
+                // Keep-alive
+            }
+        } catch (final IOException e) {
+            if (LBConfig.DEBUG) Log.d(LOGTAG, "Loopback connection ended", e);
+        } finally {
+            synchronized (mConnections) {
+                mConnections.remove(s);
+            }
+            try {
+                s.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    // Answers one request. Returns true if the connection should be kept open for another.
+    private boolean handle(DataInputStream in, OutputStream out) throws IOException {
+        final String firstLine = readLine(in, true);
+        if (null == firstLine) {
+            return false;
+        }
+        final String[] requestLine = firstLine.split(" ");
+        if (requestLine.length < 2) {
+            throw new IOException("Bad request line " + firstLine);
+        }
+
+        final Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in, false)).length() != 0) {
+            final int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+
+        final String contentLength = headers.get("content-length");
+        final byte[] body;
+        try {
+            body = new byte[null == contentLength ? 0 : Integer.parseInt(contentLength)];
+        } catch (final NumberFormatException e) {
+            throw new IOException("Bad Content-Length " + contentLength);
+        }
+        in.readFully(body);
+
+        final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        final int status = mResponder.respond(new Request(requestLine[0], requestLine[1], headers, body), responseBody);
+        final boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+        out.write(("HTTP/1.1 " + status + " Loopback\r\n" +
+                "Content-Length: " + responseBody.size() + "\r\n" +
+                (close ? "Connection: close\r\n" : "") + "\r\n").getBytes("ISO-8859-1"));
+        responseBody.writeTo(out);
+        out.flush();
+        return ! close;
+    }
+
+    // Returns null if the connection is closed before the line starts and allowEnd is true
+    private static String readLine(InputStream in, boolean allowEnd) throws IOException {
+        final StringBuilder ret = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (ret.length() == 0 && allowEnd) {
+                    return null;
+                }
+                throw new IOException("Connection closed mid-request");
+            }
+            if (c != '\r') {
+                ret.append((char) c);
+            }
+        }
+        return ret.toString();
+    }
+
+    private final Responder mResponder;
+    private final ServerSocket mSocket;
+    private final AtomicInteger mConnectionCount = new AtomicInteger(0);
+    private final Set<Socket> mConnections = new HashSet<Socket>(); // Open now
+    private boolean mShutdown; // Guarded by mConnections
+
+    private static final String LOGTAG = "LogbookAPI";
+}
@@ -0,0 +1,166 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import net.p_lucky.logbk.android.util.FormEncoder;
+
+import org.apache.http.NameValuePair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Transport} that sends every request over real HTTP, through a {@link ServerMessage},
+ * to a {@link LoopbackServer} of its own instead of to the endpoint asked for.
+ * The server takes each request after a set delay, and can be made to fail some of them,
+ * so the whole upload pipeline can be tried against a slow or flaky network on any
+ * machine, without a Logbook server.
+ *
+ * <p>The server only counts what it receives. Bodies are thrown away.
+ */
+/* package */ class LoopbackTransport implements Transport {
+
+    /**
+     * Starts the server.
+     *
+     * @param latency milliseconds the server waits before answering each request
+     * @param errorRate fraction of requests, from 0 to 1, answered with the error status instead of accepted
+     */
+    public LoopbackTransport(long latency, double errorRate) throws IOException {
+        mLatency = latency;
+        mErrorRate = errorRate;
+        mErrorStatus = 503;
+        mRandom = new Random();
+        mPoster = new ServerMessage();
+        mServer = new LoopbackServer(new LoopbackServer.Responder() {
+            @Override
+            public int respond(LoopbackServer.Request request, ByteArrayOutputStream body) throws IOException {
+                return answer(request, body);
+            }
+        });
+        mUrl = mServer.getUrl();
+    }
+
+    public void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * @param status the HTTP status failed requests are answered with, 503 by default
+     */
+    public void setErrorStatus(int status) {
+        mErrorStatus = status;
+    }
+
+    /**
+     * @return the URL every request is actually sent to
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    // Requests answered, accepted or not
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    // Request body bytes received in accepted requests, as sent
+    public long getAcceptedBytes() {
+        return mAcceptedBytes.get();
+    }
+
+    @Override
+    public boolean usesNetwork() {
+        return false;
+    }
+
+    @Override
+    public byte[] performRequest(String endpointUrl, List<NameValuePair> params, boolean keepAlive) throws IOException {
+        return mPoster.performRequest(mUrl, params, keepAlive);
+    }
+
+    @Override
+    public byte[] performStreamingRequest(String endpointUrl, List<NameValuePair> params,
+                                          String base64Name, CharSequence base64Value,
+                                          FormEncoder encoder, boolean keepAlive) throws IOException {
+        return mPoster.performStreamingRequest(mUrl, params, base64Name, base64Value, encoder, keepAlive);
+    }
+
+    @Override
+    public byte[] performJsonRequest(String endpointUrl, Map<String, String> headers,
+                                     CharSequence json, FormEncoder encoder, boolean keepAlive) throws IOException {
+        return mPoster.performJsonRequest(mUrl, headers, json, encoder, keepAlive);
+    }
+
+    @Override
+    public void setRequestCompression(String encoding) {
+        mPoster.setRequestCompression(encoding);
+    }
+
+    @Override
+    public UploadStats getStats() {
+        return mPoster.getStats();
+    }
+
+    @Override
+    public RoundTripTimer getRoundTrips() {
+        return mPoster.getRoundTrips();
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() throws IOException {
+        mServer.shutdown();
+    }
+
+    // Answers a request after the latency, failing it at the error rate
+    private int answer(LoopbackServer.Request request, ByteArrayOutputStream body) throws IOException {
+        final long latency = mLatency;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+
+        final boolean fail;
+        synchronized (mRandom) {
+            fail = mRandom.nextDouble() < mErrorRate;
+        }
+        mRequestCount.incrementAndGet();
+        if (fail) {
+            mErrorCount.incrementAndGet();
+            return mErrorStatus;
+        }
+        mAcceptedBytes.addAndGet(request.body.length);
+        body.write(RESPONSE);
+        return 200;
+    }
+
+    private final ServerMessage mPoster;
+    private final LoopbackServer mServer;
+    private final String mUrl;
+    private final Random mRandom;
+    private volatile long mLatency;
+    private volatile double mErrorRate;
+    private volatile int mErrorStatus;
+    private final AtomicLong mRequestCount = new AtomicLong(0);
+    private final AtomicLong mErrorCount = new AtomicLong(0);
+    private final AtomicLong mAcceptedBytes = new AtomicLong(0);
+
+    private static final byte[] RESPONSE = { '1', '\n' };
+}
@@ -0,0 +1,111 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free queue for many producer threads and a single consumer.
+ *
+ * <p>Any thread may call {@link #offer(Object)}, but only one thread (the Logbook
+ * worker) may call {@link #poll()}. Each slot carries a sequence number that tells
+ * producers when it is free to fill and the consumer when it has been published,
+ * so producers only contend on a single compare-and-set of the tail counter and
+ * never block.
+ */
+/* package */ class MpscRingBuffer<E> {
+
+    /**
+     * @param requestedCapacity the minimum number of elements the buffer can hold.
+     *     Will be rounded up to a power of two.
+     */
+    public MpscRingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + requestedCapacity);
+        }
+        int capacity = 1;
+        while (capacity < requestedCapacity) {
+            capacity = capacity << 1;
+        }
+
+        mMask = capacity - 1;
+        mBuffer = new Object[capacity];
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+        mTail = new AtomicLong(0);
+        mHead = 0;
+    }
+
+    /**
+     * Adds an element if there is room. Safe to call from any thread.
+     *
+     * @return false if the buffer is full, in which case element was not added
+     */
+    public boolean offer(E element) {
+        if (null == element) {
+            throw new NullPointerException("MpscRingBuffer does not accept null elements");
+        }
+
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mMask);
+            final long sequence = mSequences.get(index);
+            final long difference = sequence - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't freed this slot since the last time around
+                return false;
+            } else {
+                // Another producer claimed this position first
+                position = mTail.get();
+            }
+        }
+
+        mBuffer[index] = element;
+        mSequences.lazySet(index, position + 1); // publishes the element to the consumer
+        return true;
+    }
+
+    /**
+     * Removes the oldest published element. Must only be called from the consumer thread.
+     *
+     * @return the element, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final int index = (int) (mHead & mMask);
+        if (mSequences.get(index) != mHead + 1) {
+            return null;
+        }
+
+        final E ret = (E) mBuffer[index];
+        mBuffer[index] = null;
+        mSequences.lazySet(index, mHead + mBuffer.length); // hands the slot back to producers
+        mHead++;
+        return ret;
+    }
+
+    /**
+     * @return a snapshot of the number of claimed slots. Producers that have claimed
+     *     a slot but not yet published into it are counted.
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead);
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    private final int mMask;
+    private final Object[] mBuffer;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail;
+    private volatile long mHead; // only written by the consumer
+}
@@ -0,0 +1,139 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.util.Random;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Decides when to try uploading again after a failure.
+ *
+ * <p>After each consecutive failure, the next attempt waits a random time between zero and
+ * an exponentially growing ceiling ("full jitter"), up to a maximum delay, so devices that
+ * saw the same outage don't all come back at once. After too many consecutive failures the
+ * circuit opens, and nothing is attempted for a long cool down. The first attempt after the
+ * cool down closes the circuit if it succeeds, and opens it again if it fails.
+ *
+ * <p>The failure count and the time of the next attempt are kept in SharedPreferences, so
+ * relaunching the app doesn't reset them. Times are wall clock times, since they have to
+ * survive reboots. Not thread-safe.
+ */
+/* package */ class RetryPolicy {
+
+    public RetryPolicy(SharedPreferences preferences, long baseDelay, long maxDelay,
+                       int circuitBreakerThreshold, long circuitBreakerCooldown) {
+        this(preferences, baseDelay, maxDelay, circuitBreakerThreshold, circuitBreakerCooldown, new Random());
+    }
+
+    /* package */ RetryPolicy(SharedPreferences preferences, long baseDelay, long maxDelay,
+                              int circuitBreakerThreshold, long circuitBreakerCooldown, Random random) {
+        mPreferences = preferences;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mCircuitBreakerThreshold = circuitBreakerThreshold;
+        mCircuitBreakerCooldown = circuitBreakerCooldown;
+        mRandom = random;
+        mConsecutiveFailures = preferences.getInt(KEY_CONSECUTIVE_FAILURES, 0);
+        mNextAttemptTime = preferences.getLong(KEY_NEXT_ATTEMPT_TIME, 0);
+    }
+
+    /**
+     * @return milliseconds to wait before the next upload attempt, or 0 if we can try now
+     */
+    public long getDelayUntilNextAttempt(long now) {
+        final long delay = mNextAttemptTime - now;
+        if (delay <= 0) {
+            return 0;
+        }
+
+        // The clock was set back since we stored the time. Don't wait longer than we ever would have.
+        final long longestWait = Math.max(mMaxDelay, mCircuitBreakerCooldown);
+        if (delay > longestWait) {
+            mNextAttemptTime = now + longestWait;
+            save();
+            return longestWait;
+        }
+
+        return delay;
+    }
+
+    public boolean isCircuitOpen() {
+        return mConsecutiveFailures >= mCircuitBreakerThreshold;
+    }
+
+    public int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /**
+     * @return milliseconds to wait before the next attempt
+     */
+    public long recordFailure(long now) {
+        if (mConsecutiveFailures < Integer.MAX_VALUE) {
+            mConsecutiveFailures++;
+        }
+
+        final long delay;
+        if (isCircuitOpen()) {
+            // Still jittered, over the second half of the cool down
+            final long half = mCircuitBreakerCooldown / 2;
+            delay = mCircuitBreakerCooldown - half + randomUpTo(half);
+        } else {
+            // base * 2^(failures - 1), without overflowing
+            final int doublings = Math.min(mConsecutiveFailures - 1, MAX_DOUBLINGS);
+            final long ceiling = Math.min(mMaxDelay, mBaseDelay << doublings);
+            delay = randomUpTo(ceiling);
+        }
+
+        mNextAttemptTime = now + delay;
+        save();
+        return delay;
+    }
+
+    public void recordSuccess() {
+        if (mConsecutiveFailures != 0 || mNextAttemptTime != 0) {
+            mConsecutiveFailures = 0;
+            mNextAttemptTime = 0;
+            save();
+        }
+    }
+
+    // Uniformly distributed in [0, max]
+    private long randomUpTo(long max) {
+        if (max <= 0) {
+            return 0;
+        }
+        return (long) (mRandom.nextDouble() * (max + 1));
+    }
+
+    private void save() {
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putInt(KEY_CONSECUTIVE_FAILURES, mConsecutiveFailures);
+        editor.putLong(KEY_NEXT_ATTEMPT_TIME, mNextAttemptTime);
+        writeEdits(editor);
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void writeEdits(final SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= 9) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int mCircuitBreakerThreshold;
+    private final long mCircuitBreakerCooldown;
+    private final Random mRandom;
+    private int mConsecutiveFailures;
+    private long mNextAttemptTime;
+
+    /* package */ static final String PREFERENCES_NAME = "net.p_lucky.logbk.android.lbmetrics.RetryPolicy";
+    private static final String KEY_CONSECUTIVE_FAILURES = "consecutive_failures";
+    private static final String KEY_NEXT_ATTEMPT_TIME = "next_attempt_time";
+    private static final int MAX_DOUBLINGS = 30;
+}
@@ -0,0 +1,136 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Works out how long to wait for each endpoint to answer, from how long it has taken
+ * before, the way TCP works out its retransmission timeout (RFC 6298).
+ *
+ * <p>Each endpoint has a smoothed round trip time and a smoothed deviation from it, and
+ * the timeout is the round trip time plus four deviations, kept between the given
+ * bounds. Every time a request to an endpoint times out, its timeout doubles, until it
+ * answers again. Endpoints that haven't answered yet get the initial timeout asked for.
+ *
+ * <p>A round trip is the time from the request being sent to the response status
+ * arriving, so it covers the server's work but not the upload of the request body, nor
+ * setting up a new connection. The time that takes is smoothed separately, so a new
+ * connection's TLS handshake can be allowed for in the read timeout.
+ *
+ * <p>{@link EndpointHealth} ranks endpoints by the smoothed round trip times kept here.
+ * Safe to use from several threads at once.
+ */
+/* package */ class RoundTripTimer {
+
+    public RoundTripTimer(int minTimeout, int maxTimeout) {
+        mMinTimeout = minTimeout;
+        mMaxTimeout = Math.max(minTimeout, maxTimeout);
+        mEndpoints = new HashMap<String, Endpoint>();
+    }
+
+    /**
+     * @param rtt milliseconds between sending a request to url and its response status arriving
+     */
+    public synchronized void recordRoundTrip(String url, long rtt) {
+        final Endpoint endpoint = get(url);
+        if (endpoint.measured) {
+            endpoint.rttVariance = endpoint.rttVariance * (1 - BETA) + Math.abs(endpoint.smoothedRtt - rtt) * BETA;
+            endpoint.smoothedRtt = endpoint.smoothedRtt * (1 - ALPHA) + rtt * ALPHA;
+        } else {
+            endpoint.smoothedRtt = rtt;
+            endpoint.rttVariance = rtt / 2.0;
+            endpoint.measured = true;
+        }
+        endpoint.backoff = 1;
+    }
+
+    /**
+     * @param time milliseconds it took to connect to url, including any TLS handshake. Connects
+     *     quicker than the clock can tell reused a pooled connection, or may as well have.
+     */
+    public synchronized void recordSetup(String url, long time) {
+        if (time < CLOCK_GRANULARITY) {
+            return;
+        }
+        final Endpoint endpoint = get(url);
+        endpoint.setupTime = endpoint.setupTime > 0 ? endpoint.setupTime * (1 - ALPHA) + time * ALPHA : time;
+    }
+
+    public synchronized void recordTimeout(String url) {
+        final Endpoint endpoint = get(url);
+        if (endpoint.backoff < MAX_BACKOFF) {
+            endpoint.backoff = endpoint.backoff * 2;
+        }
+    }
+
+    /**
+     * @param initial milliseconds to wait if url hasn't answered yet
+     * @return milliseconds to wait for url to connect, or to answer
+     */
+    public synchronized int getTimeout(String url, int initial) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        final double timeout;
+        if (null == endpoint || ! endpoint.measured) {
+            timeout = initial;
+        } else {
+            timeout = endpoint.smoothedRtt + Math.max(CLOCK_GRANULARITY, K * endpoint.rttVariance);
+        }
+        final double backedOff = Math.max(mMinTimeout, timeout) * (null == endpoint ? 1 : endpoint.backoff);
+        return (int) Math.min(mMaxTimeout, backedOff);
+    }
+
+    /**
+     * @param initial milliseconds to wait if url hasn't answered yet
+     * @return milliseconds to wait for url to answer on a connection that may still have to be
+     *     set up: the timeout, plus the time new connections to url have been taking
+     */
+    public synchronized int getReadTimeout(String url, int initial) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        final double setupTime = null == endpoint ? 0 : endpoint.setupTime;
+        return (int) Math.min(mMaxTimeout, getTimeout(url, initial) + setupTime);
+    }
+
+    /**
+     * @return the smoothed round trip time to url in milliseconds, or -1 if it hasn't answered yet
+     */
+    public synchronized double getSmoothedRtt(String url) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        return null == endpoint || ! endpoint.measured ? -1 : endpoint.smoothedRtt;
+    }
+
+    /**
+     * @return the smoothed deviation of the round trip time to url in milliseconds, or -1 if it hasn't answered yet
+     */
+    public synchronized double getRttVariance(String url) {
+        final Endpoint endpoint = mEndpoints.get(url);
+        return null == endpoint || ! endpoint.measured ? -1 : endpoint.rttVariance;
+    }
+
+    private Endpoint get(String url) {
+        Endpoint ret = mEndpoints.get(url);
+        if (null == ret) {
+            ret = new Endpoint();
+            mEndpoints.put(url, ret);
+        }
+        return ret;
+    }
+
+    private static class Endpoint {
+        public boolean measured; // Has answered at least once
+        public double smoothedRtt;
+        public double rttVariance;
+        public int backoff = 1; // Timeouts are multiplied by this, doubled on every timeout
+        public double setupTime; // Smoothed time to set up a new connection, 0 until one is measured
+    }
+
+    private final int mMinTimeout;
+    private final int mMaxTimeout;
+    private final Map<String, Endpoint> mEndpoints;
+
+    // The gains and multiplier from RFC 6298
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private static final double CLOCK_GRANULARITY = 10; // SystemClock.elapsedRealtime() is good to about this
+    private static final int MAX_BACKOFF = 64;
+}
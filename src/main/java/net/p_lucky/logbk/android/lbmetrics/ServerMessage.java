@@ -3,8 +3,12 @@ package net.p_lucky.logbk.android.lbmetrics;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
+import net.p_lucky.logbk.android.util.BodyCompressor;
+import net.p_lucky.logbk.android.util.FormEncoder;
+
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 
@@ -16,12 +20,41 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends requests to Logbook over HTTP. Several requests may be made at once, from different threads.
+ */
+/* package */ class ServerMessage implements Transport {
 
-/* package */ class ServerMessage {
+    public ServerMessage() {
+        this(DEFAULT_MIN_TIMEOUT, DEFAULT_MAX_TIMEOUT);
+    }
+
+    /**
+     * @param minTimeout fewest milliseconds to wait for an endpoint to connect, or to answer
+     * @param maxTimeout most milliseconds to wait for an endpoint to connect, or to answer
+     */
+    public ServerMessage(int minTimeout, int maxTimeout) {
+        mRoundTrips = new RoundTripTimer(minTimeout, maxTimeout);
+    }
 
     public boolean isOnline(Context context) {
+        return isConnected(context);
+    }
+
+    // Shared with UploadPolicy, so the two can't disagree about whether we're online
+    /* package */ static boolean isConnected(Context context) {
         boolean isOnline;
         try {
             final ConnectivityManager cm =
@@ -36,6 +69,11 @@ import java.util.List;
         return isOnline;
     }
 
+    @Override
+    public boolean usesNetwork() {
+        return true;
+    }
+
     public byte[] getUrls(Context context, String[] urls) {
         if (! isOnline(context)) {
             return null;
@@ -44,7 +82,7 @@ import java.util.List;
         byte[] response = null;
         for (String url : urls) {
             try {
-                response = performRequest(url, null);
+                response = performRequest(url, null, false);
                 break;
             } catch (final MalformedURLException e) {
                 Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
@@ -60,62 +98,357 @@ import java.util.List;
         return response;
     }
 
-    public byte[] performRequest(String endpointUrl, List<NameValuePair> params) throws IOException {
+    /**
+     * @param keepAlive true if more requests will follow soon, like the rest of the batches in
+     *     a flush, so the connection is kept open for them to reuse. Otherwise the server is
+     *     asked to close it after this request.
+     */
+    public byte[] performRequest(String endpointUrl, final List<NameValuePair> params, boolean keepAlive) throws IOException {
+        RequestBody body = null;
+        if (null != params) {
+            final UrlEncodedFormEntity form = new UrlEncodedFormEntity(params, "UTF-8");
+            body = new RequestBody() {
+                @Override
+                public long prepare() {
+                    return form.getContentLength();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    final BufferedOutputStream bout = new BufferedOutputStream(out);
+                    form.writeTo(bout);
+                    bout.flush();
+                }
+            };
+        }
+        return sendRequest(endpointUrl, body, keepAlive);
+    }
+
+    /**
+     * Posts params along with a Base64 encoded field, like {@link #performRequest(String, List, boolean)}
+     * with {@link net.p_lucky.logbk.android.util.Base64Coder#encodeString(String)} applied
+     * to the value of that field. The form is encoded by encoder as it is written to the
+     * connection, so the encoded body is never held in memory.
+     */
+    public byte[] performStreamingRequest(String endpointUrl, final List<NameValuePair> params,
+                                          final String base64Name, final CharSequence base64Value,
+                                          final FormEncoder encoder, boolean keepAlive) throws IOException {
+        final RequestBody body = new RequestBody() {
+            @Override
+            public long prepare() throws IOException {
+                encoder.begin(null);
+                writeFields();
+                return encoder.end();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                encoder.begin(out);
+                writeFields();
+                encoder.end();
+            }
+
+            private void writeFields() throws IOException {
+                for (final NameValuePair param : params) {
+                    encoder.writeField(param.getName(), param.getValue());
+                }
+                encoder.writeBase64Field(base64Name, base64Value);
+            }
+        };
+        return sendRequest(endpointUrl, body, keepAlive);
+    }
+
+    /**
+     * Compresses request bodies with the given content coding from now on.
+     *
+     * @param encoding {@link BodyCompressor#GZIP}, {@link BodyCompressor#DEFLATE}, or null to turn compression off
+     */
+    public void setRequestCompression(String encoding) {
+        mCompression = encoding;
+    }
+
+    public UploadStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() {
+        // Idle connections are left to HttpURLConnection's pool, which closes them itself
+    }
+
+    /**
+     * @return the round trip times measured to each endpoint, which the timeouts for requests to them are based on
+     */
+    @Override
+    public RoundTripTimer getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    /**
+     * Posts json as an application/json request body, with the given extra request headers.
+     * The body is encoded as it is written to the connection, by encoder.
+     */
+    public byte[] performJsonRequest(String endpointUrl, final Map<String, String> headers,
+                                     final CharSequence json, final FormEncoder encoder, boolean keepAlive) throws IOException {
+        final RequestBody body = new RequestBody() {
+            @Override
+            public long prepare() throws IOException {
+                encoder.begin(null);
+                encoder.writeText(json);
+                return encoder.end();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                encoder.begin(out);
+                encoder.writeText(json);
+                encoder.end();
+            }
+
+            @Override
+            public void setHeaders(HttpURLConnection connection) {
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                for (final Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+        };
+        return sendRequest(endpointUrl, body, keepAlive);
+    }
+
+    private byte[] sendRequest(String endpointUrl, RequestBody body, boolean keepAlive) throws IOException {
+        final BodyCompressor compressor = null == body || mUncompressedEndpoints.contains(endpointUrl) ? null : takeCompressor();
+        if (null != compressor) {
+            try {
+                return sendRequest(endpointUrl, body, compressor, keepAlive);
+            } catch (final CompressionRejectedException e) {
+                Log.w(LOGTAG, endpointUrl + " rejected a " + compressor.getEncoding() +
+                        " request body with HTTP " + e.getResponseCode() + ", retrying without compression");
+                final byte[] response = sendRequest(endpointUrl, body, null, keepAlive);
+                // Only reached if the uncompressed request worked, so it was the compression they didn't like
+                mUncompressedEndpoints.add(endpointUrl);
+                return response;
+            } finally {
+                releaseCompressor(compressor);
+            }
+        }
+        return sendRequest(endpointUrl, body, null, keepAlive);
+    }
+
+    // Compressors hold on to big buffers, so they're kept for reuse, one for each request in progress
+    private BodyCompressor takeCompressor() {
+        final String encoding = mCompression;
+        if (null == encoding) {
+            return null;
+        }
+        synchronized (mIdleCompressors) {
+            while (! mIdleCompressors.isEmpty()) {
+                final BodyCompressor ret = mIdleCompressors.remove(mIdleCompressors.size() - 1);
+                if (encoding.equals(ret.getEncoding())) {
+                    return ret;
+                }
+                // Left over from before setRequestCompression, drop it
+            }
+        }
+        return new BodyCompressor(encoding);
+    }
+
+    private void releaseCompressor(BodyCompressor compressor) {
+        synchronized (mIdleCompressors) {
+            mIdleCompressors.add(compressor);
+        }
+    }
+
+    // Sends body compressed by compressor, or as it is if compressor is null
+    private byte[] sendRequest(String endpointUrl, RequestBody body, BodyCompressor compressor, boolean keepAlive) throws IOException {
+        final boolean compress = null != compressor;
         if (LBConfig.DEBUG) Log.d(LOGTAG, "Attempting request to " + endpointUrl);
         byte[] response = null;
 
-        // the while(retries) loop is a workaround for a bug in some Android HttpURLConnection
-        // libraries- The underlying library will attempt to reuse stale connections,
-        // meaning the second (or every other) attempt to connect fails with an EOFException.
-        // Apparently this nasty retry logic is the current state of the workaround art.
+        // Connections are left open for HttpURLConnection to reuse, so we may be handed
+        // one the server has closed since, and the attempt fails with an EOFException
+        // (some Android versions have also been known to do this with fresh connections).
+        // A failed connection isn't pooled again, so retrying gets us another one.
         int retries = 0;
         boolean succeeded = false;
-        while (retries < 3 && !succeeded) {
+        while (!succeeded) {
             InputStream in = null;
             OutputStream out = null;
-            BufferedOutputStream bout = null;
             HttpURLConnection connection = null;
+            boolean reusable = false;
 
             try {
                 final URL url = new URL(endpointUrl);
                 connection = (HttpURLConnection) url.openConnection();
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(10000);
-                if (null != params) {
+                // Round trips don't cover getting connected, so that keeps its own timeout. The read
+                // timeout has to be set before connecting too, so it allows for a TLS handshake.
+                connection.setConnectTimeout(INITIAL_CONNECT_TIMEOUT);
+                connection.setReadTimeout(mRoundTrips.getReadTimeout(endpointUrl, INITIAL_READ_TIMEOUT));
+                if (connection instanceof HttpsURLConnection) {
+                    ((HttpsURLConnection) connection).setSSLSocketFactory(getSocketFactory());
+                }
+                if (! keepAlive) {
+                    // No more requests coming soon, so don't leave an idle connection
+                    // in the pool to go stale before the next flush
+                    connection.setRequestProperty("Connection", "close");
+                }
+                long bodyLength = 0;
+                long sentLength = 0;
+                if (null != body) {
                     connection.setDoOutput(true);
-                    final UrlEncodedFormEntity form = new UrlEncodedFormEntity(params, "UTF-8");
                     connection.setRequestMethod("POST");
-                    connection.setFixedLengthStreamingMode((int)form.getContentLength());
-                    out = connection.getOutputStream();
-                    bout = new BufferedOutputStream(out);
-                    form.writeTo(bout);
-                    bout.close();
-                    bout = null;
+                    body.setHeaders(connection);
+                    if (compress) {
+                        body.writeTo(compressor.begin());
+                        sentLength = compressor.finish();
+                        bodyLength = compressor.getInputLength();
+                        connection.setRequestProperty("Content-Encoding", compressor.getEncoding());
+                        connection.setFixedLengthStreamingMode((int) sentLength);
+                        connect(connection, endpointUrl);
+                        out = connection.getOutputStream();
+                        out.write(compressor.getBuffer(), 0, (int) sentLength);
+                    } else {
+                        bodyLength = body.prepare();
+                        sentLength = bodyLength;
+                        connection.setFixedLengthStreamingMode((int) sentLength);
+                        connect(connection, endpointUrl);
+                        out = connection.getOutputStream();
+                        body.writeTo(out);
+                    }
                     out.close();
                     out = null;
+                } else {
+                    connect(connection, endpointUrl);
                 }
+
+                // Time the wait for an answer, once the body has gone (or before connecting, if there isn't one)
+                final long sentAt = SystemClock.elapsedRealtime();
+                final int responseCode = connection.getResponseCode();
+                mRoundTrips.recordRoundTrip(endpointUrl, SystemClock.elapsedRealtime() - sentAt);
+                if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    // Read the error to the end, so the connection can still be reused
+                    in = connection.getErrorStream();
+                    if (null != in) {
+                        slurp(in);
+                        in.close();
+                        in = null;
+                    }
+                    reusable = true;
+
+                    if (compress && (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE || responseCode == HttpURLConnection.HTTP_BAD_REQUEST)) {
+                        throw new CompressionRejectedException(responseCode);
+                    }
+                    throw new RejectedRequestException("HTTP " + responseCode + " from " + endpointUrl, responseCode);
+                }
+
                 in = connection.getInputStream();
                 response = slurp(in);
                 in.close();
                 in = null;
+                reusable = true;
                 succeeded = true;
+
+                if (null != body) {
+                    mStats.recordUpload(bodyLength, sentLength);
+                    if (LBConfig.DEBUG && compress) {
+                        Log.d(LOGTAG, "Sent " + sentLength + " bytes for a " + bodyLength + " byte request body, compression ratio so far " +
+                                mStats.getCompressionRatio());
+                    }
+                }
             } catch (final EOFException e) {
-                if (LBConfig.DEBUG) Log.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
                 retries = retries + 1;
+                if (retries >= MAX_EOF_RETRIES) {
+                    // Nothing was answered, so the caller has to send it again later
+                    throw e;
+                }
+                if (LBConfig.DEBUG) Log.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
+            } catch (final SocketTimeoutException e) {
+                // Wait longer next time, until it answers again
+                mRoundTrips.recordTimeout(endpointUrl);
+                mStats.recordTimeout();
+                throw e;
             } finally {
-                if (null != bout)
-                    try { bout.close(); } catch (final IOException e) { ; }
                 if (null != out)
                     try { out.close(); } catch (final IOException e) { ; }
                 if (null != in)
                     try { in.close(); } catch (final IOException e) { ; }
-                if (null != connection)
+                // disconnect() closes the socket, so only do it when the response wasn't read to the end
+                if (null != connection && ! reusable)
                     connection.disconnect();
             }
         }
         return response;
     }
 
+    // Connects now rather than on first use, to time it
+    private void connect(HttpURLConnection connection, String endpointUrl) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        connection.connect();
+        mRoundTrips.recordSetup(endpointUrl, SystemClock.elapsedRealtime() - start);
+    }
+
+    private synchronized SSLSocketFactory getSocketFactory() {
+        if (null == mSocketFactory) {
+            mSocketFactory = new HandshakeCountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(), mStats);
+        }
+        return mSocketFactory;
+    }
+
+    /**
+     * Thrown when the server answers a request with an HTTP error status.
+     */
+    /* package */ static class RejectedRequestException extends IOException {
+        public RejectedRequestException(String message, int responseCode) {
+            super(message);
+            mResponseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        /**
+         * @return true if the status says something is wrong with what we sent, so sending
+         *     the same body again won't help. Errors that could be the server's or our
+         *     configuration's (like 401, 404, 429 or any 5xx) are not counted.
+         */
+        public boolean isBodyRejected() {
+            switch (mResponseCode) {
+                case HttpURLConnection.HTTP_BAD_REQUEST:
+                case HttpURLConnection.HTTP_ENTITY_TOO_LARGE:
+                case HttpURLConnection.HTTP_UNSUPPORTED_TYPE:
+                case HTTP_UNPROCESSABLE_ENTITY:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private final int mResponseCode;
+        private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Thrown when the server responds to a compressed request in a way that suggests it can't decompress it
+    private static class CompressionRejectedException extends RejectedRequestException {
+        public CompressionRejectedException(int responseCode) {
+            super("Compressed request rejected with HTTP " + responseCode, responseCode);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // A request body that can be written more than once, for retries
+    private static abstract class RequestBody {
+        // Returns the length of the body in bytes
+        public abstract long prepare() throws IOException;
+        public abstract void writeTo(OutputStream out) throws IOException;
+
+        // By default, HttpURLConnection sends POSTs as forms
+        public void setHeaders(HttpURLConnection connection) {
+        }
+    }
+
     // Does not close input streamq
     private byte[] slurp(final InputStream inputStream)
         throws IOException {
@@ -132,5 +465,22 @@ import java.util.List;
         return buffer.toByteArray();
     }
 
+    private volatile String mCompression;
+    private final List<BodyCompressor> mIdleCompressors = new ArrayList<BodyCompressor>();
+    private final Set<String> mUncompressedEndpoints = Collections.synchronizedSet(new HashSet<String>());
+    private final UploadStats mStats = new UploadStats();
+    private final RoundTripTimer mRoundTrips;
+    private SSLSocketFactory mSocketFactory;
+
+    private static final int INITIAL_CONNECT_TIMEOUT = 2000;
+    // Read timeout for endpoints we haven't measured yet
+    private static final int INITIAL_READ_TIMEOUT = 10000;
+
+    /* package */ static final int DEFAULT_MIN_TIMEOUT = 1000;
+    /* package */ static final int DEFAULT_MAX_TIMEOUT = 30000;
+
+    // Attempts at a request that end with the connection closed before any answer
+    private static final int MAX_EOF_RETRIES = 3;
+
     private static final String LOGTAG = "LogbookAPI";
 }
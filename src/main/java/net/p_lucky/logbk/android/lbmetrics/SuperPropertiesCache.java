@@ -0,0 +1,180 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+/**
+ * Keeps a snapshot of the default properties sent with every event.
+ *
+ * <p>Most of the default properties never change while the app is running. The rest
+ * (carrier, wifi and bluetooth state) each cost a call into a system service, so they
+ * are only read again when a connectivity or bluetooth broadcast arrives, or when the
+ * snapshot is older than its time to live.
+ *
+ * <p>Not thread-safe. Should only be used on the thread of the Handler passed
+ * to the constructor, which is also where broadcasts are delivered.
+ */
+/* package */ class SuperPropertiesCache {
+
+    public SuperPropertiesCache(Context context, SystemInformation systemInformation, Handler handler, long timeToLive) {
+        mContext = context;
+        mSystemInformation = systemInformation;
+        mHandler = handler;
+        mTimeToLive = timeToLive;
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (LBConfig.DEBUG) Log.d(LOGTAG, "Default properties invalidated by " + intent.getAction());
+                invalidate();
+            }
+        };
+        mRegistered = false;
+        mSnapshot = null;
+    }
+
+    /**
+     * Starts listening for changes to connectivity and bluetooth state.
+     */
+    public void start() {
+        if (mRegistered) {
+            return;
+        }
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        try {
+            mContext.registerReceiver(mReceiver, filter, null, mHandler);
+            mRegistered = true;
+        } catch (final RuntimeException e) {
+            // We'll still pick up changes when the snapshot expires
+            Log.w(LOGTAG, "Can't listen for connectivity changes, default properties will only be refreshed every " + mTimeToLive + " ms", e);
+        }
+    }
+
+    public void stop() {
+        if (mRegistered) {
+            mContext.unregisterReceiver(mReceiver);
+            mRegistered = false;
+        }
+    }
+
+    public void invalidate() {
+        mSnapshot = null;
+    }
+
+    /**
+     * @return a new JSONObject holding a copy of the current default properties
+     */
+    public JSONObject newEventObject() throws JSONException {
+        final long now = SystemClock.elapsedRealtime();
+        if (null == mSnapshot || now - mSnapshotTime > mTimeToLive) {
+            mSnapshot = readProperties();
+            mSnapshotNames = new String[mSnapshot.length()];
+            int i = 0;
+            for (final Iterator<?> iter = mSnapshot.keys(); iter.hasNext();) {
+                mSnapshotNames[i] = (String) iter.next();
+                i++;
+            }
+            mSnapshotTime = now;
+        }
+
+        return new JSONObject(mSnapshot, mSnapshotNames);
+    }
+
+    private JSONObject readProperties() throws JSONException {
+        if (null == mUnchangingProperties) {
+            mUnchangingProperties = readUnchangingProperties();
+        }
+
+        final JSONObject ret = new JSONObject(mUnchangingProperties, mUnchangingNames);
+
+        final String carrier = mSystemInformation.getCurrentNetworkOperator();
+        if (null != carrier)
+            ret.put("carrier", carrier);
+
+        final Boolean isWifi = mSystemInformation.isWifiConnected();
+        if (null != isWifi)
+            ret.put("wifi", isWifi.booleanValue());
+
+        final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
+        if (isBluetoothEnabled != null)
+            ret.put("bluetoothEnabled", isBluetoothEnabled);
+
+        return ret;
+    }
+
+    private JSONObject readUnchangingProperties() throws JSONException {
+        final JSONObject ret = new JSONObject();
+
+        ret.put("libName", "logbk-android");
+        ret.put("libVersion", LBConfig.VERSION);
+
+        // For querying together with data from other libraries
+        ret.put("os", "Android");
+        ret.put("osVersion", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+
+        ret.put("manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
+        ret.put("brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
+        ret.put("model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+
+        final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
+        ret.put("screenDpi", displayMetrics.densityDpi);
+        ret.put("screenHeight", displayMetrics.heightPixels);
+        ret.put("screenWidth", displayMetrics.widthPixels);
+
+        final String applicationVersionName = mSystemInformation.getAppVersionName();
+        if (null != applicationVersionName)
+            ret.put("appVersion", applicationVersionName);
+
+        final Boolean hasNFC = mSystemInformation.hasNFC();
+        if (null != hasNFC)
+            ret.put("hasNfc", hasNFC.booleanValue());
+
+        final Boolean hasTelephony = mSystemInformation.hasTelephony();
+        if (null != hasTelephony)
+            ret.put("hasTelephone", hasTelephony.booleanValue());
+
+        final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
+        if (bluetoothVersion != null)
+            ret.put("bluetoothVersion", bluetoothVersion);
+
+        mUnchangingNames = new String[ret.length()];
+        int i = 0;
+        for (final Iterator<?> iter = ret.keys(); iter.hasNext();) {
+            mUnchangingNames[i] = (String) iter.next();
+            i++;
+        }
+
+        return ret;
+    }
+
+    private final Context mContext;
+    private final SystemInformation mSystemInformation;
+    private final Handler mHandler;
+    private final long mTimeToLive;
+    private final BroadcastReceiver mReceiver;
+    private boolean mRegistered;
+
+    private JSONObject mUnchangingProperties;
+    private String[] mUnchangingNames;
+    private JSONObject mSnapshot;
+    private String[] mSnapshotNames;
+    private long mSnapshotTime;
+
+    private static final String LOGTAG = "LogbookAPI";
+}
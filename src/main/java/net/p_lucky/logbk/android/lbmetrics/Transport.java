@@ -0,0 +1,73 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import net.p_lucky.logbk.android.util.FormEncoder;
+
+import org.apache.http.NameValuePair;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries batches of events away from the device. {@link ServerMessage} sends them to
+ * the Logbook servers over HTTP, {@link FileTransport} appends them to a local file, and
+ * {@link LoopbackTransport} sends them over HTTP to a server inside the app that can be
+ * made slow or unreliable on purpose.
+ *
+ * <p>Implementations must be safe to use from several threads at once, since each
+ * upload thread sends its own batches.
+ *
+ * <p>The request methods return the body of the response, and throw
+ * {@link ServerMessage.RejectedRequestException} if the request was answered with an
+ * error, or any other IOException if it couldn't be made.
+ */
+/* package */ interface Transport {
+
+    /**
+     * @return true if requests go over the device's network connection, and so should
+     *     wait for one, and be sparing with metered ones
+     */
+    public boolean usesNetwork();
+
+    /**
+     * Posts params as a form.
+     *
+     * @param keepAlive true if more requests will follow soon, like the rest of the batches in a flush
+     */
+    public byte[] performRequest(String endpointUrl, List<NameValuePair> params, boolean keepAlive) throws IOException;
+
+    /**
+     * Posts params as a form, along with a field whose value is Base64 encoded as it is sent.
+     */
+    public byte[] performStreamingRequest(String endpointUrl, List<NameValuePair> params,
+                                          String base64Name, CharSequence base64Value,
+                                          FormEncoder encoder, boolean keepAlive) throws IOException;
+
+    /**
+     * Posts json, with the given extra request headers.
+     */
+    public byte[] performJsonRequest(String endpointUrl, Map<String, String> headers,
+                                     CharSequence json, FormEncoder encoder, boolean keepAlive) throws IOException;
+
+    /**
+     * Compresses request bodies with the given content coding from now on, if this transport compresses at all.
+     *
+     * @param encoding {@link net.p_lucky.logbk.android.util.BodyCompressor#GZIP},
+     *     {@link net.p_lucky.logbk.android.util.BodyCompressor#DEFLATE}, or null to turn compression off
+     */
+    public void setRequestCompression(String encoding);
+
+    public UploadStats getStats();
+
+    /**
+     * @return the round trip times measured to each endpoint, which endpoints are ranked by.
+     *     Transports that don't wait for an answer never record any.
+     */
+    public RoundTripTimer getRoundTrips();
+
+    /**
+     * Lets go of whatever the transport holds open, like files or servers, once the worker
+     * using it has stopped. No requests may be made after this.
+     */
+    public void close() throws IOException;
+}
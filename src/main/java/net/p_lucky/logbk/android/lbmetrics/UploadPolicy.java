@@ -0,0 +1,160 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Decides whether a flush should go ahead now, given the state of the network and
+ * the battery.
+ *
+ * <p>Like {@link SuperPropertiesCache}, the state is read once and then kept until a
+ * connectivity or power broadcast says it has changed, rather than asking the system
+ * services before every flush. If the broadcasts can't be received, the state is read
+ * every time instead.
+ *
+ * <p>A flush is put off while the device is offline. When the meteredBacklogLimit is
+ * zero or more, a flush of a backlog bigger than that is also put off while the device
+ * is on a network other than Wi-Fi and not charging, unless it is a high priority flush.
+ * Smaller backlogs still go right away. When a broadcast arrives after a flush was put
+ * off, the onChange Runnable is run so it can be tried again.
+ *
+ * <p>Not thread-safe. Should only be used on the thread of the Handler passed
+ * to the constructor, which is also where broadcasts are delivered.
+ */
+/* package */ class UploadPolicy {
+
+    // Results of check()
+    public static final int UPLOAD_NOW = 0;
+    public static final int WAIT_FOR_CONNECTION = 1;
+    public static final int WAIT_FOR_WIFI_OR_CHARGING = 2;
+
+    public UploadPolicy(Context context, SystemInformation systemInformation, Handler handler,
+                        int meteredBacklogLimit, Runnable onChange) {
+        mContext = context;
+        mSystemInformation = systemInformation;
+        mHandler = handler;
+        mMeteredBacklogLimit = meteredBacklogLimit;
+        mOnChange = onChange;
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final String action = intent.getAction();
+                if (LBConfig.DEBUG) Log.d(LOGTAG, "Upload conditions changed by " + action);
+                if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                    mCharging = true;
+                } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                    mCharging = false;
+                } else {
+                    mNetworkStale = true;
+                }
+                if (mWaiting) {
+                    mWaiting = false;
+                    mOnChange.run();
+                }
+            }
+        };
+        mRegistered = false;
+        mNetworkStale = true;
+    }
+
+    /**
+     * Starts listening for changes to connectivity and power state.
+     */
+    public void start() {
+        if (mRegistered) {
+            return;
+        }
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        try {
+            mContext.registerReceiver(mReceiver, filter, null, mHandler);
+            mRegistered = true;
+        } catch (final RuntimeException e) {
+            Log.w(LOGTAG, "Can't listen for connectivity or power changes, they will be checked before every flush", e);
+        }
+    }
+
+    public void stop() {
+        if (mRegistered) {
+            mContext.unregisterReceiver(mReceiver);
+            mRegistered = false;
+        }
+    }
+
+    /**
+     * @param queueDepth the number of events waiting to be sent
+     * @param highPriority true if the app asked for this flush itself
+     * @return UPLOAD_NOW, or the reason to wait
+     */
+    public int check(int queueDepth, boolean highPriority) {
+        if (mNetworkStale || ! mRegistered) {
+            mConnected = readConnected();
+            mWifi = readWifi();
+            mNetworkStale = false;
+        }
+        if (! mRegistered || null == mCharging) {
+            // Power changes are only broadcast, so read the current state once to start from
+            mCharging = readCharging();
+        }
+
+        int ret = UPLOAD_NOW;
+        if (! mConnected) {
+            ret = WAIT_FOR_CONNECTION;
+        } else if (! highPriority && mMeteredBacklogLimit >= 0 && queueDepth > mMeteredBacklogLimit &&
+                Boolean.FALSE.equals(mWifi) && Boolean.FALSE.equals(mCharging)) {
+            // If we can't tell whether we're on Wi-Fi or charging, don't wait for it
+            ret = WAIT_FOR_WIFI_OR_CHARGING;
+        }
+        mWaiting = ret != UPLOAD_NOW;
+        return ret;
+    }
+
+    /* package */ boolean readConnected() {
+        return ServerMessage.isConnected(mContext);
+    }
+
+    // Returns null if we can't tell
+    /* package */ Boolean readWifi() {
+        return mSystemInformation.isWifiConnected();
+    }
+
+    // Returns null if we can't tell
+    /* package */ Boolean readCharging() {
+        final Intent battery;
+        try {
+            // The battery broadcast is sticky, so this returns the latest one without registering anything
+            battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        } catch (final RuntimeException e) {
+            return null;
+        }
+        if (null == battery) {
+            return null;
+        }
+        return battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private final Context mContext;
+    private final SystemInformation mSystemInformation;
+    private final Handler mHandler;
+    private final int mMeteredBacklogLimit;
+    private final Runnable mOnChange;
+    private final BroadcastReceiver mReceiver;
+    private boolean mRegistered;
+
+    private boolean mNetworkStale;
+    private boolean mConnected;
+    private Boolean mWifi;
+    private Boolean mCharging;
+    private boolean mWaiting; // The last check said to wait
+
+    private static final String LOGTAG = "LogbookAPI";
+}
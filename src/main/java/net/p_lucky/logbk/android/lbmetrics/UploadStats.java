@@ -0,0 +1,71 @@
+package net.p_lucky.logbk.android.lbmetrics;
+
+/**
+ * Running totals for the requests sent by a {@link Transport}.
+ *
+ * <p>Updated by the upload threads, and safe to read from any thread.
+ */
+/* package */ class UploadStats {
+
+    /**
+     * @param bodyBytes length of the request body before compression
+     * @param sentBytes length of the request body as sent
+     */
+    public synchronized void recordUpload(long bodyBytes, long sentBytes) {
+        mUploads++;
+        mBodyBytes += bodyBytes;
+        mSentBytes += sentBytes;
+    }
+
+    public synchronized void recordHandshake() {
+        mHandshakes++;
+    }
+
+    public synchronized void recordTimeout() {
+        mTimeouts++;
+    }
+
+    public synchronized long getUploads() {
+        return mUploads;
+    }
+
+    public synchronized long getBodyBytes() {
+        return mBodyBytes;
+    }
+
+    public synchronized long getSentBytes() {
+        return mSentBytes;
+    }
+
+    /**
+     * @return TLS handshakes made so far. With connection reuse working, this
+     *     should be well below the number of uploads.
+     */
+    public synchronized long getHandshakes() {
+        return mHandshakes;
+    }
+
+    /**
+     * @return requests that gave up waiting to connect or for an answer
+     */
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return bytes sent over bytes before compression, over all uploads so far,
+     *     or 1 if nothing has been uploaded yet
+     */
+    public synchronized double getCompressionRatio() {
+        if (mBodyBytes == 0) {
+            return 1.0;
+        }
+        return (double) mSentBytes / mBodyBytes;
+    }
+
+    private long mUploads;
+    private long mBodyBytes;
+    private long mSentBytes;
+    private long mHandshakes;
+    private long mTimeouts;
+}
@@ -0,0 +1,140 @@
+package net.p_lucky.logbk.android.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies with the gzip or deflate content codings (RFC 2616, 3.5).
+ *
+ * <p>The compressed body is collected in memory, so its length can be sent up front.
+ * The output buffer and the Deflater are kept and reused from one body to the next.
+ * Not thread-safe.
+ */
+public class BodyCompressor {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     */
+    public BodyCompressor(String encoding) {
+        if (! GZIP.equals(encoding) && ! DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported content encoding " + encoding);
+        }
+        mEncoding = encoding;
+        mGzip = GZIP.equals(encoding);
+        // gzip has its own header and trailer around raw deflate data, deflate is zlib format
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, mGzip);
+        mCrc = new CRC32();
+        mOutput = new Output();
+        mChunk = new byte[4096];
+        mInput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                final byte[] one = { (byte) b };
+                write(one, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (mGzip) {
+                    mCrc.update(b, off, len);
+                }
+                mInputLength += len;
+                mDeflater.setInput(b, off, len);
+                while (! mDeflater.needsInput()) {
+                    deflate();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the value for the Content-Encoding header of compressed bodies
+     */
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    /**
+     * Starts compressing a new body, discarding the last one.
+     *
+     * @return a stream to write the uncompressed body to. Closing it does nothing.
+     */
+    public OutputStream begin() {
+        mOutput.reset();
+        mDeflater.reset();
+        mCrc.reset();
+        mInputLength = 0;
+        if (mGzip) {
+            mOutput.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        }
+        return mInput;
+    }
+
+    /**
+     * Finishes the body started by {@link #begin()}.
+     *
+     * @return the length of the compressed body, which is held in the first bytes of {@link #getBuffer()}
+     */
+    public int finish() {
+        mDeflater.finish();
+        while (! mDeflater.finished()) {
+            deflate();
+        }
+        if (mGzip) {
+            writeIntLE((int) mCrc.getValue());
+            writeIntLE((int) mInputLength); // ISIZE is the length mod 2^32
+        }
+        return mOutput.size();
+    }
+
+    public byte[] getBuffer() {
+        return mOutput.getBuffer();
+    }
+
+    /**
+     * @return the uncompressed length of the last body
+     */
+    public long getInputLength() {
+        return mInputLength;
+    }
+
+    private void deflate() {
+        final int count = mDeflater.deflate(mChunk, 0, mChunk.length);
+        mOutput.write(mChunk, 0, count);
+    }
+
+    private void writeIntLE(int i) {
+        mOutput.write(i & 0xFF);
+        mOutput.write((i >> 8) & 0xFF);
+        mOutput.write((i >> 16) & 0xFF);
+        mOutput.write((i >> 24) & 0xFF);
+    }
+
+    // Gives access to the buffer without copying it
+    private static class Output extends ByteArrayOutputStream {
+        public Output() {
+            super(8192);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final String mEncoding;
+    private final boolean mGzip;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc;
+    private final Output mOutput;
+    private final OutputStream mInput;
+    private final byte[] mChunk;
+    private long mInputLength;
+
+    // Magic number, deflate, no flags, no modification time, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+}
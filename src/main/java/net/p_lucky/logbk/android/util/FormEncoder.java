@@ -0,0 +1,202 @@
+package net.p_lucky.logbk.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes application/x-www-form-urlencoded request bodies straight to an OutputStream,
+ * without building the body in memory first.
+ *
+ * <p>Values are converted to UTF-8 and URL encoded in one pass, through a fixed size
+ * buffer that is reused by every body written. Values written with
+ * {@link #writeBase64Field(String, CharSequence)} are Base64 encoded in the same pass,
+ * giving the same result as URL encoding {@link Base64Coder#encodeString(String)}.
+ *
+ * <p>{@link #writeText(CharSequence)} writes plain UTF-8 instead, for bodies that
+ * aren't forms.
+ *
+ * <p>To find the length of a body before sending it, write it once with a null
+ * OutputStream. Not thread-safe.
+ */
+public class FormEncoder {
+
+    public FormEncoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public FormEncoder(int bufferSize) {
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Starts a new body.
+     *
+     * @param out where to write the body, or null to only count its length
+     */
+    public void begin(OutputStream out) {
+        mOut = out;
+        mPosition = 0;
+        mLength = 0;
+        mFieldCount = 0;
+        mBase64 = false;
+        mRaw = false;
+    }
+
+    public void writeField(String name, CharSequence value) throws IOException {
+        startField(name);
+        writeUtf8(value);
+    }
+
+    public void writeBase64Field(String name, CharSequence value) throws IOException {
+        startField(name);
+        mBase64 = true;
+        mBase64Bits = 0;
+        mBase64Count = 0;
+        writeUtf8(value);
+
+        // Pad out the last group
+        if (mBase64Count == 1) {
+            writeUrlEncoded(BASE64[(mBase64Bits >> 2) & 0x3F]);
+            writeUrlEncoded(BASE64[(mBase64Bits << 4) & 0x3F]);
+            writeUrlEncoded('=');
+            writeUrlEncoded('=');
+        } else if (mBase64Count == 2) {
+            writeUrlEncoded(BASE64[(mBase64Bits >> 10) & 0x3F]);
+            writeUrlEncoded(BASE64[(mBase64Bits >> 4) & 0x3F]);
+            writeUrlEncoded(BASE64[(mBase64Bits << 2) & 0x3F]);
+            writeUrlEncoded('=');
+        }
+        mBase64 = false;
+    }
+
+    /**
+     * Writes text as UTF-8, without any other encoding.
+     */
+    public void writeText(CharSequence text) throws IOException {
+        mRaw = true;
+        writeUtf8(text);
+        mRaw = false;
+    }
+
+    /**
+     * Writes out anything still buffered. Does not flush or close the OutputStream.
+     *
+     * @return the length in bytes of the body written since {@link #begin(OutputStream)}
+     */
+    public long end() throws IOException {
+        flushBuffer();
+        mOut = null;
+        return mLength;
+    }
+
+    ////////////////////////////////////////////////////
+
+    private void startField(String name) throws IOException {
+        if (mFieldCount > 0) {
+            writeByte('&');
+        }
+        mFieldCount++;
+        writeUtf8(name);
+        writeByte('=');
+    }
+
+    // Lone surrogates become '?', as they do in String.getBytes()
+    private void writeUtf8(CharSequence s) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                encodeByte(c);
+            } else if (c < 0x800) {
+                encodeByte(0xC0 | (c >> 6));
+                encodeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+                i++;
+                encodeByte(0xF0 | (codePoint >> 18));
+                encodeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                encodeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                encodeByte(0x80 | (codePoint & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                encodeByte('?');
+            } else {
+                encodeByte(0xE0 | (c >> 12));
+                encodeByte(0x80 | ((c >> 6) & 0x3F));
+                encodeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    // Takes one byte of UTF-8, and writes it Base64 and/or URL encoded
+    private void encodeByte(int b) throws IOException {
+        b = b & 0xFF;
+        if (mRaw) {
+            writeByte(b);
+            return;
+        }
+        if (! mBase64) {
+            writeUrlEncoded(b);
+            return;
+        }
+
+        mBase64Bits = (mBase64Bits << 8) | b;
+        mBase64Count++;
+        if (mBase64Count == 3) {
+            writeUrlEncoded(BASE64[(mBase64Bits >> 18) & 0x3F]);
+            writeUrlEncoded(BASE64[(mBase64Bits >> 12) & 0x3F]);
+            writeUrlEncoded(BASE64[(mBase64Bits >> 6) & 0x3F]);
+            writeUrlEncoded(BASE64[mBase64Bits & 0x3F]);
+            mBase64Bits = 0;
+            mBase64Count = 0;
+        }
+    }
+
+    // The same encoding as java.net.URLEncoder, which is what UrlEncodedFormEntity uses
+    private void writeUrlEncoded(int b) throws IOException {
+        if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+                b == '.' || b == '-' || b == '*' || b == '_') {
+            writeByte(b);
+        } else if (b == ' ') {
+            writeByte('+');
+        } else {
+            writeByte('%');
+            writeByte(HEX_DIGITS[b >> 4]);
+            writeByte(HEX_DIGITS[b & 0xF]);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        mLength++;
+        if (null == mOut) {
+            return;
+        }
+        if (mPosition == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mPosition] = (byte) b;
+        mPosition++;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (null != mOut && mPosition > 0) {
+            mOut.write(mBuffer, 0, mPosition);
+        }
+        mPosition = 0;
+    }
+
+    private final byte[] mBuffer;
+    private OutputStream mOut;
+    private int mPosition;
+    private long mLength;
+    private int mFieldCount;
+
+    private boolean mRaw;
+    private boolean mBase64;
+    private int mBase64Bits;
+    private int mBase64Count;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+}